@@ -0,0 +1,161 @@
+package com.ptsmods.devlogin;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares rewriting the launch arguments with {@link ArgsRewriter} to the way DevLogin used to do it with JOptSimple.
+ * Before benchmarking, checks that both parse every arg vector in {@link #CASES} the same way and that the ones in {@link #LENIENT_CASES}
+ * are rewritten as expected, which can also be done on its own with {@code ./gradlew :benchmark:argsCheck}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ArgsRewriterBenchmark {
+    /**
+     * Arg vectors covering the corners of JOptSimple's syntax that launchers and run configurations may hit.
+     */
+    private static final String[][] CASES = {
+            {},
+            LaunchArgs.create(0),
+            LaunchArgs.create(0, "--msa", "--msa-no-dialog", "--msa-account", "Someone"),
+            // Abbreviations, exact matches win over longer options, ambiguous ones are passed on.
+            {"--mimicP", "Someone", "--username", "Player123"},
+            {"--mimicPlayers", "a,b,c", "--mimicI", "2"},
+            {"--prox", "localhost", "--msa-n"},
+            // Repeated options, the values of the game's are all passed on in order.
+            {"--msa", "--msa", "--tweakClass", "a", "--tweakClass", "b", "--tweakClass", "c"},
+            {"--username", "Player123", "--version", "1.20.4", "--username", "Player456"},
+            // --option=value for DevLogin's own options.
+            {"--proxyHost=localhost", "--proxyPort=1080", "--msa"},
+            {"--msa-account=a=b", "--proxyUser="},
+            // Values that look like options.
+            {"--proxyPass", "-secret", "--msa"},
+            {"--proxyPass", "--msa"},
+            {"--username", "--msa", "--uuid", "0"},
+            // DevLogin's options may also be passed with a single dash.
+            {"-msa", "-proxyHost", "localhost", "--username", "Player123"},
+            {"--username", "Player123", "-", "--version", "1.20.4"},
+            // Empty values
+            {"--username", "", "--proxyUser", "", "--version", "1.20.4"},
+            {"--msa-account", "", "--gameDir", ""},
+            // Options without values, args that are no value of anything and the end of options.
+            {"--demo", "--fullscreen", "--username", "Player123"},
+            {"stray", "--username", "Player123", "also-stray", "--version", "1.20.4", "trailing"},
+            {"--msa", "--", "--username", "Player123", "--mimicPlayer", "Someone"},
+            // Options missing their value make JOptSimple reject all args, which ArgsRewriter does too.
+            {"--username", "Player123", "--mimicPlayer"},
+    };
+
+    /**
+     * Arg vectors JOptSimple threw on, which kept the game from launching at all, with what ArgsRewriter rewrites them to instead.
+     */
+    private static final String[][][] LENIENT_CASES = {
+            // DevLogin's own options use their first value.
+            {{"--mimicPlayer", "First", "--mimicPlayer", "Second", "--username", "Player123"}, {"--username", "Player123"}},
+            // --option=value for the game's options, the value may contain another = or be empty.
+            {{"--proxyHost=localhost", "--username=Player123", "--gameDir=/a=b"}, {"--username", "Player123", "--gameDir", "/a=b"}},
+            {{"--username=", "--version", "1.20.4"}, {"--username", "", "--version", "1.20.4"}},
+            // Single-dash args are never passed on to the game, nor taken as the value of one of its options.
+            {{"-x", "--username", "Player123", "-Dfoo=bar", "--demo"}, {"--username", "Player123"}},
+            {{"--width", "-854", "--height", "480"}, {"--height", "480"}},
+            // Another -- ends the game's options as well.
+            {{"--username", "Player123", "--", "--version", "1.20.4", "--", "--demo", "x"}, {"--username", "Player123", "--version", "1.20.4"}},
+            // mimicIndex is only read as a number once it's used, at which point DevLogin falls back to 0.
+            {{"--mimicPlayers", "a,b", "--mimicIndex", "first", "--username", "Player123"}, {"--username", "Player123"}},
+    };
+
+    @Param({"0", "100"})
+    public int extraArgs;
+    private String[] args;
+    private AuthenticationProfile profile;
+
+    public static void main(String[] args) {
+        AuthenticationProfile profile = createProfile();
+        for (String[] vector : CASES) verify(vector, profile);
+        for (String[][] lenientCase : LENIENT_CASES) verifyLenient(lenientCase[0], lenientCase[1]);
+        System.out.println("All " + CASES.length + " arg vectors are parsed and rewritten the same way as JOptSimple did, " +
+                "all " + LENIENT_CASES.length + " it rejected are rewritten as expected.");
+    }
+
+    @Setup
+    public void setup() {
+        args = LaunchArgs.create(extraArgs, "--msa", "--proxyHost", "localhost", "--tweak0", "repeated");
+        profile = createProfile();
+
+        verify(args, profile);
+        for (String[] vector : CASES) verify(vector, profile);
+        for (String[][] lenientCase : LENIENT_CASES) verifyLenient(lenientCase[0], lenientCase[1]);
+    }
+
+    @Benchmark
+    public String[] legacy() {
+        return LegacyArgs.rewrite(args, profile);
+    }
+
+    @Benchmark
+    public String[] rewriter() {
+        return DevLogin.createRewriter().parse(args).rewrite(profile);
+    }
+
+    private static AuthenticationProfile createProfile() {
+        return new AuthenticationProfile("PlanetTeamSpeak", UndashedUuid.fromString(LaunchArgs.UUID), "token", AuthenticationProfile.Type.MSA, null);
+    }
+
+    /**
+     * Checks that {@link ArgsRewriter} reads the same values for DevLogin's own options as JOptSimple did and passes the same args on to the game,
+     * both with and without a profile to override them with, or that both reject the args.
+     * @throws IllegalStateException If they don't.
+     */
+    private static void verify(String[] args, AuthenticationProfile profile) {
+        Map<String, String> legacyOwn;
+        // JOptSimple did not keep the order of different args, only that of the values of each one.
+        Map<String, ?> legacy, legacyWithProfile;
+        try {
+            legacyOwn = LegacyArgs.parseOwn(args);
+            legacy = LegacyArgs.group(LegacyArgs.rewrite(args, null));
+            legacyWithProfile = LegacyArgs.group(LegacyArgs.rewrite(args, profile));
+        } catch (RuntimeException e) { // Usually an OptionException
+            try {
+                DevLogin.createRewriter().parse(args);
+            } catch (IllegalArgumentException expected) {
+                return;
+            }
+            throw new IllegalStateException("JOptSimple rejected " + Arrays.toString(args) + " (" + e + "), but ArgsRewriter did not.");
+        }
+
+        ArgsRewriter.ParsedArgs parsed = DevLogin.createRewriter().parse(args);
+        Map<String, String> own = new TreeMap<>();
+        for (String option : legacyOwn.keySet()) own.put(option, parsed.has(option) + " " + parsed.valueOf(option));
+        if (!own.equals(legacyOwn))
+            throw new IllegalStateException("ArgsRewriter read " + own + " from " + Arrays.toString(args) + ", JOptSimple read " + legacyOwn + ".");
+
+        Map<String, ?> rewritten = LegacyArgs.group(DevLogin.createRewriter().parse(args).rewrite(null));
+        Map<String, ?> rewrittenWithProfile = LegacyArgs.group(DevLogin.createRewriter().parse(args).rewrite(profile));
+        if (!legacy.equals(rewritten) || !legacyWithProfile.equals(rewrittenWithProfile))
+            throw new IllegalStateException("ArgsRewriter rewrote " + Arrays.toString(args) + " to " + rewritten + " and " + rewrittenWithProfile +
+                    " with a profile, JOptSimple to " + legacy + " and " + legacyWithProfile + ".");
+    }
+
+    /**
+     * Checks that JOptSimple rejected the given args and that {@link ArgsRewriter} rewrites them to the expected args.
+     * @throws IllegalStateException If it doesn't.
+     */
+    private static void verifyLenient(String[] args, String[] expected) {
+        try {
+            LegacyArgs.parseOwn(args);
+            LegacyArgs.rewrite(args, null);
+            throw new IllegalStateException("JOptSimple accepted " + Arrays.toString(args) + ", it should be one of the regular cases.");
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalStateException) throw e;
+        }
+
+        String[] rewritten = DevLogin.createRewriter().parse(args).rewrite(null);
+        if (!Arrays.equals(rewritten, expected))
+            throw new IllegalStateException("ArgsRewriter rewrote " + Arrays.toString(args) + " to " + Arrays.toString(rewritten) + " instead of " + Arrays.toString(expected) + ".");
+    }
+}
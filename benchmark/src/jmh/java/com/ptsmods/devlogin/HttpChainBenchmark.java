@@ -0,0 +1,67 @@
+package com.ptsmods.devlogin;
+
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.DefaultAsyncHttpClient;
+import org.asynchttpclient.Response;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the six sequential requests of a full login against an in-process stub server,
+ * using the shared transport, with either backend, versus a new async-http-client per login like DevLogin used to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HttpChainBenchmark {
+    private static final String[] paths = {"/consumers/oauth2/v2.0/token", "/user/authenticate", "/xsts/authorize",
+            "/authentication/login_with_xbox", "/minecraft/profile", "/session/minecraft/profile/" + LaunchArgs.UUID};
+    @Param({"jdk", "ahc"})
+    public String transport;
+    private StubServer server;
+
+    @Setup
+    public void setup() throws IOException {
+        System.setProperty("devlogin.http", transport);
+        server = new StubServer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+        Http.close();
+    }
+
+    @Benchmark
+    public int sharedTransport() throws Exception {
+        HttpTransport transport = Http.getTransport(Proxy.NO_PROXY);
+        int length = 0;
+        for (String path : paths) {
+            HttpTransport.Response resp = transport.send(new HttpTransport.Request(getMethod(path), server.getUrl() + path, null, null), 10000,
+                    HttpTransport.Listener.NONE).get(10, TimeUnit.SECONDS);
+            length += resp.getBody().length();
+        }
+
+        return length;
+    }
+
+    @Benchmark
+    public int clientPerLogin() throws Exception {
+        int length = 0;
+        try (AsyncHttpClient client = new DefaultAsyncHttpClient()) {
+            for (String path : paths) {
+                Response resp = client.prepare(getMethod(path), server.getUrl() + path).execute().get(10, TimeUnit.SECONDS);
+                length += resp.getResponseBody().length();
+            }
+        }
+
+        return length;
+    }
+
+    private static String getMethod(String path) {
+        return path.startsWith("/minecraft") || path.startsWith("/session") ? "GET" : "POST";
+    }
+}
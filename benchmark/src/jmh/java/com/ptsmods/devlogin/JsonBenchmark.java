@@ -0,0 +1,53 @@
+package com.ptsmods.devlogin;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decoding responses with the typed adapters registered with {@link Json#GSON} to the way DevLogin used to do it:
+ * a new Gson instance per response, the body turned into a String and walked as a {@link JsonObject}.
+ * Run with {@code -prof gc} to see the difference in allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonBenchmark {
+    private final byte[] xsts = "{\"IssueInstant\":\"2020-12-07T19:52:08.4463796Z\",\"NotAfter\":\"2020-12-21T19:52:08.4463796Z\",\"Token\":\"token\",\"DisplayClaims\":{\"xui\":[{\"uhs\":\"userhash\"}]}}"
+            .getBytes(StandardCharsets.UTF_8);
+    private final byte[] session = ("{\"id\":\"" + LaunchArgs.UUID + "\",\"name\":\"PlanetTeamSpeak\",\"properties\":[{\"name\":\"textures\",\"value\":\"" +
+            Base64.getEncoder().encodeToString(new byte[600]) + "\",\"signature\":\"" + Base64.getEncoder().encodeToString(new byte[512]) + "\"}]}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public String xstsLegacy() {
+        JsonObject respObject = new Gson().fromJson(new String(xsts, StandardCharsets.UTF_8), JsonObject.class);
+        return respObject.get("Token").getAsString() + respObject.get("DisplayClaims").getAsJsonObject()
+                .get("xui").getAsJsonArray()
+                .get(0).getAsJsonObject()
+                .get("uhs").getAsString();
+    }
+
+    @Benchmark
+    public String xstsTyped() {
+        Responses.XboxToken token = Json.read(new ByteArrayInputStream(xsts), Responses.XboxToken.class);
+        return token.token + token.userHash;
+    }
+
+    @Benchmark
+    public String sessionLegacy() {
+        JsonObject data = new Gson().fromJson(new String(session, StandardCharsets.UTF_8), JsonObject.class);
+        return data.get("name").getAsString() + new Gson().toJson(data.get("properties"));
+    }
+
+    @Benchmark
+    public String sessionTyped() {
+        Responses.SessionProfile data = Json.read(new ByteArrayInputStream(session), Responses.SessionProfile.class);
+        return data.name + data.properties;
+    }
+}
@@ -0,0 +1,42 @@
+package com.ptsmods.devlogin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Launch arguments as passed by launchers and mod development environments.
+ */
+final class LaunchArgs {
+    static final String UUID = "1aa35f3108814959bd1421e8a72ba0c1";
+
+    private LaunchArgs() {}
+
+    /**
+     * @param extraArgs The amount of additional, made-up args to add on top of the args a launcher passes.
+     * @param devLoginArgs The args for DevLogin itself.
+     * @return A realistic array of launch arguments.
+     */
+    static String[] create(int extraArgs, String... devLoginArgs) {
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "--username", "Player" + 123,
+                "--version", "fabric-loader-0.15.3-1.20.4",
+                "--gameDir", "/home/dev/projects/mod/run",
+                "--assetsDir", "/home/dev/.gradle/caches/fabric-loom/assets",
+                "--assetIndex", "12",
+                "--uuid", "00000000-0000-0000-0000-000000000000",
+                "--accessToken", "0",
+                "--clientId", "0",
+                "--xuid", "0",
+                "--userType", "legacy",
+                "--versionType", "release",
+                "--width", "854",
+                "--height", "480",
+                "--quickPlaySingleplayer", "New World"));
+
+        for (int i = 0; i < extraArgs; i++) Collections.addAll(args, "--tweak" + i, "value" + i);
+        Collections.addAll(args, devLoginArgs);
+        return args.toArray(new String[0]);
+    }
+}
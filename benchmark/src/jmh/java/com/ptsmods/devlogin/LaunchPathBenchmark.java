@@ -0,0 +1,61 @@
+package com.ptsmods.devlogin;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the code that runs on every launch before the game can start, without any requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LaunchPathBenchmark {
+    @Param({"0", "100"})
+    public int extraArgs;
+    private String[] args, msaArgs;
+    private AuthenticationProfile profile;
+
+    @Setup
+    public void setup() throws IOException {
+        // Must be set before the token store is loaded.
+        System.setProperty("devlogin.dir", Files.createTempDirectory("devlogin-benchmark").toString());
+
+        // A cached token that's valid for another day, so --msa does not make any requests.
+        Map<String, String> data = new HashMap<>();
+        data.put("mcToken", Tokens.jwt(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)));
+        data.put("profileName", "PlanetTeamSpeak");
+        data.put("profileId", LaunchArgs.UUID);
+        TokenStore.put(data);
+
+        args = LaunchArgs.create(extraArgs);
+        msaArgs = LaunchArgs.create(extraArgs, "--msa-nostore", "--msa-no-dialog");
+        profile = new AuthenticationProfile("PlanetTeamSpeak", UndashedUuid.fromString(LaunchArgs.UUID), "token", AuthenticationProfile.Type.MSA,
+                "[{\"name\":\"textures\",\"value\":\"e30=\",\"signature\":\"c2lnbmF0dXJl\"}]");
+    }
+
+    @Benchmark
+    public String[] modifyArgs() {
+        return DevLogin.modifyArgs(args);
+    }
+
+    @Benchmark
+    public String[] modifyArgsCachedMsa() {
+        return DevLogin.modifyArgs(msaArgs);
+    }
+
+    @Benchmark
+    public String[] rewriteArgs() {
+        return DevLogin.createRewriter().parse(args).rewrite(profile);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> putProfile() {
+        Map<String, List<String>> args = new LinkedHashMap<>();
+        profile.put(args);
+        return args;
+    }
+}
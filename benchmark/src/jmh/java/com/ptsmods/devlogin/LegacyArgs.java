@@ -0,0 +1,99 @@
+package com.ptsmods.devlogin;
+
+import joptsimple.*;
+
+import java.util.*;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The JOptSimple-based way DevLogin used to rewrite the launch arguments, kept to compare {@link ArgsRewriter} against.
+ */
+final class LegacyArgs {
+    private LegacyArgs() {}
+
+    static String[] rewrite(String[] args, AuthenticationProfile profile) {
+        OptionParser parser = createParser();
+        NonOptionArgumentSpec<String> nonOptionsSpec = parser.nonOptions();
+
+        OptionSet options = parser.parse(args);
+        Map<String, List<String>> newArgs = parseExcessArgs(options.valuesOf(nonOptionsSpec));
+        if (profile != null) profile.put(newArgs);
+
+        return newArgs.entrySet().stream()
+                .flatMap(entry -> entry.getValue().stream()
+                        .filter(Objects::nonNull)
+                        .flatMap(s -> Stream.of("--" + entry.getKey(), s)))
+                .toArray(String[]::new);
+    }
+
+    /**
+     * Parses the given args and returns what DevLogin would've read from them for its own options.
+     * @return For every option, whether it was passed and its value (or default value), e.g. {@code msa=true null}.
+     * @throws OptionException If JOptSimple could not parse the args.
+     */
+    static Map<String, String> parseOwn(String[] args) {
+        OptionParser parser = createParser();
+        OptionSet options = parser.parse(args);
+
+        Map<String, String> own = new TreeMap<>();
+        for (Map.Entry<String, OptionSpec<?>> entry : parser.recognizedOptions().entrySet())
+            if (!(entry.getValue() instanceof NonOptionArgumentSpec))
+                own.put(entry.getKey(), options.has(entry.getKey()) + " " + options.valueOf(entry.getKey()));
+        return own;
+    }
+
+    private static OptionParser createParser() {
+        OptionParser parser = new OptionParser();
+        parser.allowsUnrecognizedOptions();
+        parser.accepts("mimicPlayer").withRequiredArg();
+        parser.accepts("mimicPlayers").withRequiredArg();
+        parser.accepts("mimicIndex").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        parser.accepts("msa");
+        parser.accepts("msa-nostore");
+        parser.accepts("msa-no-dialog");
+        parser.accepts("msa-account").withRequiredArg();
+        parser.accepts("msa-broker");
+        parser.accepts("msa-pool"); // Added after DevLogin stopped using JOptSimple, but parsed the same way.
+        parser.accepts("devlogin-early");
+        parser.accepts("proxyHost").withRequiredArg();
+        parser.accepts("proxyPort").withRequiredArg().ofType(Integer.class).defaultsTo(8080);
+        parser.accepts("proxyUser").withRequiredArg();
+        parser.accepts("proxyPass").withRequiredArg();
+        return parser;
+    }
+
+    static Map<String, List<String>> parseExcessArgs(List<String> nonOptions) {
+        OptionParser excessParser = new OptionParser();
+
+        nonOptions.stream()
+                .filter(s -> s.startsWith("--"))
+                .map(s -> s.substring(2))
+                .forEach(s -> excessParser.accepts(s, s).withOptionalArg());
+
+        Function<Map.Entry<OptionSpec<?>, List<?>>, String> keyMapper = entry -> ((ArgumentAcceptingOptionSpec<?>) entry.getKey()).description();
+        Function<Map.Entry<OptionSpec<?>, List<?>>, List<String>> valueMapper = entry -> entry.getValue().stream()
+                .map(String::valueOf)
+                .collect(Collectors.toList());
+        BinaryOperator<List<String>> mergeFunction = (list1, list2) -> {
+            list1.addAll(list2);
+            return list1;
+        };
+
+        OptionSet excessOptions = excessParser.parse(nonOptions.toArray(new String[0]));
+        return excessOptions.asMap().entrySet().stream()
+                .collect(Collectors.toMap(keyMapper, valueMapper, mergeFunction, LinkedHashMap::new));
+    }
+
+    /**
+     * @return The given rewritten args grouped per arg. JOptSimple did not keep the order of the args,
+     * so this is what has to be equal for both ways of rewriting.
+     */
+    static Map<String, List<String>> group(String[] args) {
+        Map<String, List<String>> grouped = new TreeMap<>();
+        for (int i = 0; i < args.length; i += 2) grouped.computeIfAbsent(args[i], k -> new ArrayList<>()).add(args[i + 1]);
+        return grouped;
+    }
+}
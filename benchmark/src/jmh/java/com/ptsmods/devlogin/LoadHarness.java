@@ -0,0 +1,126 @@
+package com.ptsmods.devlogin;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives many concurrent logins through a {@link StubServer} and reports the throughput and latency percentiles,
+ * so regressions can be caught without touching the real services.
+ * Run it with {@code ./gradlew :benchmark:loadTest}, passing options with e.g. {@code -PloadArgs="--mode mimic --logins 1000"}.
+ * Exits with status 1 if the p99 latency or failure rate exceeds the given maximum.
+ */
+public class LoadHarness {
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.accepts("mode", "msa, mimic or mimicPlayers").withRequiredArg().defaultsTo("msa");
+        parser.accepts("logins").withRequiredArg().ofType(Integer.class).defaultsTo(500);
+        parser.accepts("concurrency").withRequiredArg().ofType(Integer.class).defaultsTo(100);
+        parser.accepts("latency", "Milliseconds every response is delayed by").withRequiredArg().ofType(Integer.class).defaultsTo(20);
+        parser.accepts("error-rate").withRequiredArg().ofType(Double.class).defaultsTo(0d);
+        parser.accepts("rate-limit-rate").withRequiredArg().ofType(Double.class).defaultsTo(0d);
+        parser.accepts("slow-down-rate").withRequiredArg().ofType(Double.class).defaultsTo(0d);
+        parser.accepts("pending-polls").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        parser.accepts("client-rate-limits", "Keep the requests under DevLogin's own rate limits, which all share the stub server's URL");
+        parser.accepts("max-p99", "Maximum p99 latency in milliseconds").withRequiredArg().ofType(Long.class);
+        parser.accepts("max-failure-rate").withRequiredArg().ofType(Double.class);
+        OptionSet options = parser.parse(args);
+
+        String mode = (String) options.valueOf("mode");
+        int logins = (Integer) options.valueOf("logins"), concurrency = (Integer) options.valueOf("concurrency");
+
+        // Must be set before anything is loaded from the DevLogin directory.
+        System.setProperty("devlogin.dir", Files.createTempDirectory("devlogin-load").toString());
+        System.setProperty("devlogin.timings", "false");
+        System.setProperty("devlogin.rateLimits", String.valueOf(options.has("client-rate-limits")));
+
+        try (StubServer server = new StubServer()
+                .latency((Integer) options.valueOf("latency"))
+                .errorRate((Double) options.valueOf("error-rate"))
+                .rateLimitRate((Double) options.valueOf("rate-limit-rate"))
+                .slowDownRate((Double) options.valueOf("slow-down-rate"))
+                .pendingPolls((Integer) options.valueOf("pending-polls"))) {
+            System.setProperty("devlogin.authServer", server.getUrl());
+
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            List<Future<Long>> results = new ArrayList<>();
+            AtomicInteger failures = new AtomicInteger();
+            long start = System.nanoTime();
+            for (int i = 0; i < logins; i++) {
+                int login = i;
+                results.add(executor.submit(() -> {
+                    long loginStart = System.nanoTime();
+                    if (!login(mode, login)) failures.incrementAndGet();
+                    return System.nanoTime() - loginStart;
+                }));
+            }
+
+            List<Long> latencies = new ArrayList<>();
+            for (Future<Long> result : results)
+                try {
+                    latencies.add(TimeUnit.NANOSECONDS.toMillis(result.get()));
+                } catch (ExecutionException e) {
+                    failures.incrementAndGet();
+                }
+            long took = System.nanoTime() - start;
+            executor.shutdown();
+            Http.close();
+
+            Collections.sort(latencies);
+            double failureRate = (double) failures.get() / logins;
+            long p99 = percentile(latencies, 99);
+            System.out.printf("%d %s logins with %d threads in %d ms: %.1f logins/s, %d failed (%.1f%%)%n", logins, mode, concurrency,
+                    TimeUnit.NANOSECONDS.toMillis(took), logins / (took / 1e9), failures.get(), failureRate * 100);
+            System.out.printf("Latency: p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n", percentile(latencies, 50), percentile(latencies, 90),
+                    p99, latencies.isEmpty() ? 0 : latencies.get(latencies.size() - 1));
+            System.out.println("Stub server: " + server.getStats());
+
+            boolean failed = false;
+            if (options.has("max-p99") && p99 > (Long) options.valueOf("max-p99")) {
+                System.out.println("p99 latency exceeds the maximum of " + options.valueOf("max-p99") + " ms.");
+                failed = true;
+            }
+            if (options.has("max-failure-rate") && failureRate > (Double) options.valueOf("max-failure-rate")) {
+                System.out.println("Failure rate exceeds the maximum of " + options.valueOf("max-failure-rate") + ".");
+                failed = true;
+            }
+            System.exit(failed ? 1 : 0);
+        }
+    }
+
+    /**
+     * Does a single login.
+     * @param mode msa for a full Microsoft login using the device code flow, mimic for mimicking a single player
+     *             and mimicPlayers for resolving ten players at once.
+     * @param login The number of the login, used to make every login unique so nothing is cached.
+     * @return Whether the login resulted in a profile.
+     */
+    private static boolean login(String mode, int login) throws IOException {
+        switch (mode) {
+            case "msa":
+                // An account that has not been stored, so the full device code flow is done.
+                return DevLogin.loginMSA(Proxy.NO_PROXY, false, true, "load-" + login) != null;
+            case "mimic":
+                return Arrays.asList(DevLogin.modifyArgs(new String[] {"--mimicPlayer", "Load" + login})).contains("--profileProperties");
+            case "mimicPlayers":
+                List<String> players = new ArrayList<>();
+                for (int i = 0; i < 10; i++) players.add("Load" + login + "_" + i);
+                return !MimicResolver.resolve(Proxy.NO_PROXY, players).contains(null);
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        return sorted.isEmpty() ? 0 : sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(percentile / 100d * sorted.size()) - 1));
+    }
+}
@@ -0,0 +1,140 @@
+package com.ptsmods.devlogin;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks entire logins against a {@link StubServer}, from the device code to the Minecraft profile,
+ * and resolving many players to mimic at once. Every invocation uses an account or players nothing has been cached for,
+ * except for {@link #msaStaleCache(StaleCache)}, which logs in with an account whose cached token has been revoked,
+ * and {@link #msaCachedXsts(CachedXsts)}, which does the same but can get a new token from the cached XSTS token.
+ * {@link #msaBrowser(BrowserFlow)} logs in with the authorization code flow instead of the device code flow,
+ * with a "browser" that follows the redirects of the stub server without showing anything.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoginBenchmark {
+    @Param({"0", "20"})
+    public int latency;
+    private StubServer server;
+    private int invocation;
+
+    @Setup
+    public void setup() throws IOException {
+        // Must be set before anything is loaded from the DevLogin directory.
+        System.setProperty("devlogin.dir", Files.createTempDirectory("devlogin-benchmark").toString());
+        System.setProperty("devlogin.timings", "false");
+        System.setProperty("devlogin.rateLimits", "false"); // Every endpoint is the stub server, which doesn't limit anything.
+
+        server = new StubServer().latency(latency);
+        System.setProperty("devlogin.authServer", server.getUrl());
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+        Http.close();
+    }
+
+    @Benchmark
+    public AuthenticationProfile msa() {
+        return DevLogin.loginMSA(Proxy.NO_PROXY, false, true, "benchmark-" + invocation++);
+    }
+
+    @Benchmark
+    public AuthenticationProfile msaStaleCache(StaleCache cache) {
+        return DevLogin.loginMSA(Proxy.NO_PROXY, false, true, "PlanetTeamSpeak");
+    }
+
+    @Benchmark
+    public AuthenticationProfile msaCachedXsts(CachedXsts cache) {
+        return DevLogin.loginMSA(Proxy.NO_PROXY, false, true, "PlanetTeamSpeak");
+    }
+
+    @Benchmark
+    public AuthenticationProfile msaBrowser(BrowserFlow flow) {
+        return DevLogin.loginMSA(Proxy.NO_PROXY, false, true, "benchmark-" + invocation++);
+    }
+
+    @Benchmark
+    public List<AuthenticationProfile> mimicPlayers() throws IOException {
+        List<String> players = new ArrayList<>();
+        for (int i = 0; i < 100; i++) players.add("Benchmark" + invocation + "_" + i);
+        invocation++;
+
+        return MimicResolver.resolve(Proxy.NO_PROXY, players);
+    }
+
+    @State(Scope.Benchmark)
+    public static class BrowserFlow {
+        @Setup
+        public void setup() {
+            System.setProperty("devlogin.authFlow", "browser");
+            // Visits the authorize page, which redirects to DevLogin's loopback server right away, as if the user logged in instantly.
+            Browser.setOpener(url -> {
+                CompletableFuture.runAsync(() -> {
+                    try {
+                        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                        try (InputStream in = connection.getInputStream()) {
+                            while (in.read() != -1) ; // Read it entirely, like a browser would.
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                return true;
+            });
+        }
+
+        @TearDown
+        public void tearDown() {
+            System.clearProperty("devlogin.authFlow");
+            Browser.setOpener(null);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class StaleCache {
+        @Setup(Level.Invocation)
+        public void setup() {
+            // A token that doesn't tell when it expires and is rejected by the server, so it has to be checked and refreshed.
+            Map<String, String> data = new HashMap<>();
+            data.put("refreshToken", "refresh");
+            data.put("mcToken", "revoked");
+            data.put("profileName", "PlanetTeamSpeak");
+            data.put("profileId", LaunchArgs.UUID);
+            TokenStore.put(data);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CachedXsts {
+        @Setup(Level.Invocation)
+        public void setup() {
+            // Same as StaleCache, but the XSTS token is still valid, so only the Minecraft token has to be requested again.
+            Map<String, String> data = new HashMap<>();
+            data.put("refreshToken", "refresh");
+            data.put("xstsToken", "xsts");
+            data.put("xstsExpiry", String.valueOf(System.currentTimeMillis() + 3600000L));
+            data.put("userHash", "hash");
+            data.put("mcToken", "revoked");
+            data.put("profileName", "PlanetTeamSpeak");
+            data.put("profileId", LaunchArgs.UUID);
+            TokenStore.put(data);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.ptsmods.devlogin;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares what each {@link HttpTransport} costs a fresh JVM that logs in: how long it takes for {@link DevLogin#modifyArgs(String[])}
+ * to return, how many classes are loaded by then and how much heap is in use. Every launch is a new JVM, as that's the only way
+ * to measure class loading and startup, which logs in against a {@link StubServer} running in this JVM.
+ * Run it with {@code ./gradlew :benchmark:startupTest}, passing options with e.g. {@code -PstartupArgs="--launches 20 --mode mimic"}.
+ */
+public class StartupHarness {
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.accepts("mode", "refresh, to refresh a stored account's token, or mimic").withRequiredArg().defaultsTo("refresh");
+        parser.accepts("transports", "Comma-separated transports to compare").withRequiredArg().defaultsTo("jdk,ahc");
+        parser.accepts("launches", "Launches per transport").withRequiredArg().ofType(Integer.class).defaultsTo(10);
+        parser.accepts("latency", "Milliseconds every response is delayed by").withRequiredArg().ofType(Integer.class).defaultsTo(20);
+        OptionSet options = parser.parse(args);
+
+        String mode = (String) options.valueOf("mode");
+        int launches = (Integer) options.valueOf("launches");
+        Path dir = Files.createTempDirectory("devlogin-startup");
+        // Must be set before anything is loaded from the DevLogin directory.
+        System.setProperty("devlogin.dir", dir.toString());
+
+        try (StubServer server = new StubServer().latency((Integer) options.valueOf("latency"))) {
+            System.out.printf("%-10s %12s %12s %10s %10s %8s%n", "transport", "modifyArgs", "JVM uptime", "classes", "heap", "threads");
+            for (String transport : ((String) options.valueOf("transports")).split(",")) {
+                List<long[]> results = new ArrayList<>();
+                for (int i = 0; i < launches; i++) {
+                    if (mode.equals("refresh")) storeExpiredAccount();
+                    results.add(launch(dir, server.getUrl(), transport, mode, i));
+                }
+
+                System.out.printf("%-10s %9d ms %9d ms %10d %7d KB %8d%n", transport, median(results, 0), median(results, 1), median(results, 2),
+                        median(results, 3) / 1024, median(results, 4));
+            }
+        }
+    }
+
+    /**
+     * Stores an account whose Minecraft token has expired, but has a refresh token, so logging in takes every step from the refresh on.
+     */
+    private static void storeExpiredAccount() {
+        Map<String, String> data = new HashMap<>();
+        data.put("refreshToken", "refresh-token");
+        data.put("mcToken", Tokens.jwt(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        data.put("profileName", "PlanetTeamSpeak");
+        data.put("profileId", LaunchArgs.UUID);
+        TokenStore.put(data);
+    }
+
+    /**
+     * Launches a JVM that runs {@link Probe} and reads its results.
+     * @return The time modifyArgs took and the JVM uptime in milliseconds, the amount of loaded classes, the heap in use in bytes and the amount of threads.
+     */
+    private static long[] launch(Path dir, String serverUrl, String transport, String mode, int launch) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "-Ddevlogin.dir=" + dir, "-Ddevlogin.authServer=" + serverUrl,
+                "-Ddevlogin.http=" + transport, "-Ddevlogin.timings=false", "-Ddevlogin.rateLimits=false", Probe.class.getName(), mode, "Startup" + launch)
+                .redirectErrorStream(true)
+                .start();
+
+        long[] result = null;
+        List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                output.add(line);
+                if (line.startsWith("RESULT ")) result = Arrays.stream(line.substring(7).split(" ")).mapToLong(Long::parseLong).toArray();
+            }
+        }
+
+        if (process.waitFor() != 0 || result == null) throw new IllegalStateException("Launch with " + transport + " failed:\n" + String.join("\n", output));
+        return result;
+    }
+
+    private static long median(List<long[]> results, int index) {
+        long[] values = results.stream().mapToLong(result -> result[index]).sorted().toArray();
+        return values[values.length / 2];
+    }
+
+    /**
+     * Runs in the launched JVM: logs in like the game would and reports what that cost.
+     */
+    public static class Probe {
+        public static void main(String[] args) {
+            String[] launchArgs = args[0].equals("mimic") ? LaunchArgs.create(0, "--mimicPlayer", args[1]) : LaunchArgs.create(0, "--msa", "--msa-no-dialog");
+
+            long start = System.nanoTime();
+            String[] modified = DevLogin.modifyArgs(launchArgs);
+            long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            if (Arrays.asList(modified).contains("Player123")) throw new IllegalStateException("Logging in failed.");
+
+            int classes = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            memory.gc();
+            System.out.println("RESULT " + took + " " + uptime + " " + classes + " " + memory.getHeapMemoryUsage().getUsed() + " " + Thread.activeCount());
+            System.exit(0); // Don't wait for anything DevLogin left running.
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.ptsmods.devlogin;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the Microsoft, Xbox Live, Minecraft Services and Mojang endpoints DevLogin uses.
+ * Implements the device code flow, the authorization code flow with PKCE, refreshing, XBL, XSTS, login_with_xbox, the profile, the (bulk) name and session profile lookups
+ * and the textures the session profiles point to.
+ * Every player name exists, every device code gets authorized after a configurable amount of polls,
+ * every visit to the authorize page is immediately redirected back with a code as if the user logged in
+ * and only Minecraft tokens handed out by this server are accepted.
+ * <p>
+ * Faults can be injected: every response can be delayed, a share of all requests can fail with a 503 or a 429,
+ * and a share of all device code polls can be answered with {@code slow_down}.
+ * Point DevLogin at it by setting the {@code devlogin.authServer} system property to {@link #getUrl()}.
+ */
+class StubServer implements Closeable {
+    private static final Gson gson = new Gson();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String token = Tokens.jwt(System.currentTimeMillis() + 86400000L);
+    private final byte[] texture = createTexture();
+    private final Map<String, AtomicInteger> polls = new ConcurrentHashMap<>(); // Device code -> times polled
+    private final Map<String, String> names = new ConcurrentHashMap<>(); // Undashed UUID -> name
+    private final Map<String, String[]> authCodes = new ConcurrentHashMap<>(); // Authorization code -> code challenge and redirect URI
+    private final AtomicInteger deviceCodes = new AtomicInteger(), authCodeCount = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong(), errors = new AtomicLong(), rateLimited = new AtomicLong(), slowDowns = new AtomicLong();
+    private volatile int latency, pollInterval, pendingPolls = 1;
+    private volatile double errorRate, rateLimitRate, slowDownRate;
+
+    StubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "StubServer");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @param latency The time in milliseconds every response is delayed by.
+     * @return This server
+     */
+    StubServer latency(int latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param errorRate The share of requests, between 0 and 1, that fail with a 503.
+     * @return This server
+     */
+    StubServer errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * @param rateLimitRate The share of requests, between 0 and 1, that fail with a 429 asking to retry after a second.
+     * @return This server
+     */
+    StubServer rateLimitRate(double rateLimitRate) {
+        this.rateLimitRate = rateLimitRate;
+        return this;
+    }
+
+    /**
+     * @param slowDownRate The share of device code polls, between 0 and 1, that are answered with {@code slow_down},
+     *                     which makes DevLogin poll five seconds less often.
+     * @return This server
+     */
+    StubServer slowDownRate(double slowDownRate) {
+        this.slowDownRate = slowDownRate;
+        return this;
+    }
+
+    /**
+     * @param pollInterval The interval in seconds clients are told to poll at, 0 by default.
+     * @return This server
+     */
+    StubServer pollInterval(int pollInterval) {
+        this.pollInterval = pollInterval;
+        return this;
+    }
+
+    /**
+     * @param pendingPolls The amount of polls that are answered with {@code authorization_pending} before a device code is authorized.
+     * @return This server
+     */
+    StubServer pendingPolls(int pendingPolls) {
+        this.pendingPolls = pendingPolls;
+        return this;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String body;
+        try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            // Requests must be read entirely for the connection to be reused.
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[1024];
+            for (int read; (read = reader.read(buf)) != -1; ) sb.append(buf, 0, read);
+            body = sb.toString();
+        }
+
+        if (latency > 0)
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < rateLimitRate) {
+            rateLimited.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, 429, "");
+            return;
+        }
+        if (random.nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            send(exchange, 503, "{\"error\":\"temporarily_unavailable\"}");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/texture/")) send(exchange, 200, "image/png", texture);
+        else if (path.startsWith("/session/minecraft/profile/")) sendSessionProfile(exchange, path.substring("/session/minecraft/profile/".length()));
+        else if (path.startsWith("/users/profiles/minecraft/")) send(exchange, 200, gson.toJson(profile(path.substring("/users/profiles/minecraft/".length()))));
+        else switch (path) {
+            case "/consumers/oauth2/v2.0/devicecode":
+                int code = deviceCodes.incrementAndGet();
+                send(exchange, 200, String.format("{\"device_code\":\"device-%d\",\"user_code\":\"STUB-%d\",\"verification_uri\":\"%s/link\",\"expires_in\":900,\"interval\":%d}",
+                        code, code, getUrl(), pollInterval));
+                break;
+            case "/consumers/oauth2/v2.0/authorize":
+                authorize(exchange, parseForm(exchange.getRequestURI().getRawQuery()));
+                break;
+            case "/consumers/oauth2/v2.0/token":
+                sendTokens(exchange, parseForm(body));
+                break;
+            case "/user/authenticate":
+                send(exchange, 200, "{\"Token\":\"xbl\",\"NotAfter\":\"2100-01-01T00:00:00Z\",\"DisplayClaims\":{\"xui\":[{\"uhs\":\"hash\"}]}}");
+                break;
+            case "/xsts/authorize":
+                send(exchange, 200, "{\"Token\":\"xsts\",\"NotAfter\":\"2100-01-01T00:00:00Z\",\"DisplayClaims\":{\"xui\":[{\"uhs\":\"hash\"}]}}");
+                break;
+            case "/authentication/login_with_xbox":
+                send(exchange, 200, "{\"access_token\":\"" + token + "\",\"expires_in\":86400}");
+                break;
+            case "/minecraft/profile":
+                if (!("Bearer " + token).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                    send(exchange, 401, "{\"path\":\"/minecraft/profile\",\"errorType\":\"UnauthorizedOperationException\",\"error\":\"UnauthorizedOperationException\"}");
+                    break;
+                }
+
+                send(exchange, 200, "{\"id\":\"" + LaunchArgs.UUID + "\",\"name\":\"PlanetTeamSpeak\",\"skins\":[],\"capes\":[]}");
+                break;
+            case "/profiles/minecraft":
+                JsonArray profiles = new JsonArray();
+                for (JsonElement name : gson.fromJson(body, JsonArray.class)) profiles.add(profile(name.getAsString()));
+                send(exchange, 200, gson.toJson(profiles));
+                break;
+            default:
+                send(exchange, 404, "{\"error\":\"Not Found\"}");
+        }
+    }
+
+    private void sendTokens(HttpExchange exchange, Map<String, String> form) throws IOException {
+        if ("urn:ietf:params:oauth:grant-type:device_code".equals(form.get("grant_type"))) {
+            int polled = polls.computeIfAbsent(form.get("device_code"), k -> new AtomicInteger()).incrementAndGet();
+            if (ThreadLocalRandom.current().nextDouble() < slowDownRate) {
+                slowDowns.incrementAndGet();
+                send(exchange, 400, "{\"error\":\"slow_down\"}");
+                return;
+            }
+            if (polled <= pendingPolls) {
+                send(exchange, 400, "{\"error\":\"authorization_pending\"}");
+                return;
+            }
+            polls.remove(form.get("device_code"));
+        } else if ("authorization_code".equals(form.get("grant_type"))) {
+            String[] authCode = form.get("code") == null ? null : authCodes.remove(form.get("code"));
+            if (authCode == null || form.get("code_verifier") == null || !authCode[0].equals(sha256(form.get("code_verifier"))) || !authCode[1].equals(form.get("redirect_uri"))) {
+                send(exchange, 400, "{\"error\":\"invalid_grant\"}");
+                return;
+            }
+        }
+
+        send(exchange, 200, "{\"token_type\":\"Bearer\",\"access_token\":\"access\",\"refresh_token\":\"refresh\",\"expires_in\":3600}");
+    }
+
+    /**
+     * Acts as if the user logged in right away and redirects them back to the client with a code.
+     */
+    private void authorize(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String redirectUri = query.get("redirect_uri");
+        if (redirectUri == null || !"code".equals(query.get("response_type")) || !"S256".equals(query.get("code_challenge_method")) || query.get("code_challenge") == null) {
+            send(exchange, 400, "{\"error\":\"invalid_request\"}");
+            return;
+        }
+
+        String code = "code-" + authCodeCount.incrementAndGet();
+        authCodes.put(code, new String[] {query.get("code_challenge"), redirectUri});
+        exchange.getResponseHeaders().set("Location", redirectUri + (redirectUri.contains("?") ? "&" : "?") + "code=" + code +
+                (query.get("state") == null ? "" : "&state=" + URLEncoder.encode(query.get("state"), "UTF-8")));
+        send(exchange, 302, "");
+    }
+
+    private void sendSessionProfile(HttpExchange exchange, String id) throws IOException {
+        String name = names.getOrDefault(id, "Player" + id.substring(0, Math.min(8, id.length())));
+        String textures = Base64.getEncoder().encodeToString(String.format("{\"timestamp\":%d,\"profileId\":\"%s\",\"profileName\":\"%s\",\"textures\":{\"SKIN\":{\"url\":\"%s/texture/%s\"}}}",
+                System.currentTimeMillis(), id, name, getUrl(), id).getBytes(StandardCharsets.UTF_8));
+        send(exchange, 200, String.format("{\"id\":\"%s\",\"name\":\"%s\",\"properties\":[{\"name\":\"textures\",\"value\":\"%s\",\"signature\":\"c2lnbmF0dXJl\"}]}", id, name, textures));
+    }
+
+    /**
+     * @return The profile of a made-up player with the given name and a UUID derived from it.
+     */
+    private JsonObject profile(String name) {
+        String id = UndashedUuid.toString(UUID.nameUUIDFromBytes(name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)));
+        names.put(id, name);
+
+        JsonObject profile = new JsonObject();
+        profile.addProperty("id", id);
+        profile.addProperty("name", name);
+        return profile;
+    }
+
+    private static Map<String, String> parseForm(String body) throws UnsupportedEncodingException {
+        Map<String, String> form = new HashMap<>();
+        if (body == null) return form;
+
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq != -1) form.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return form;
+    }
+
+    private static String sha256(String s) {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return A blank 64x64 skin.
+     */
+    private static byte[] createTexture() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB), "png", out);
+        return out.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int status, String response) throws IOException {
+        send(exchange, status, "application/json", response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return The base URL of this server, e.g. http://127.0.0.1:12345
+     */
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return A summary of the requests this server has handled and the faults it injected.
+     */
+    String getStats() {
+        return String.format("%d requests, %d errors, %d rate limited, %d slow downs", requests.get(), errors.get(), rateLimited.get(), slowDowns.get());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
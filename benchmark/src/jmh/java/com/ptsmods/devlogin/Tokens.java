@@ -0,0 +1,22 @@
+package com.ptsmods.devlogin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Creates tokens that look like the ones Minecraft Services hands out.
+ */
+final class Tokens {
+    private Tokens() {}
+
+    /**
+     * @param expiry The epoch in milliseconds at which the token expires.
+     * @return An unsigned JWT that expires at the given time.
+     */
+    static String jwt(long expiry) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"HS256\"}".getBytes(StandardCharsets.UTF_8)) + "." +
+                encoder.encodeToString(("{\"xuid\":\"2535426531480000\",\"exp\":" + expiry / 1000 + "}").getBytes(StandardCharsets.UTF_8)) + "." +
+                encoder.encodeToString("signature".getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,34 @@
+package com.ptsmods.devlogin;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UndashedUuidBenchmark {
+    private final String undashed = LaunchArgs.UUID, dashed = "1aa35f31-0881-4959-bd14-21e8a72ba0c1";
+    private final UUID uuid = UUID.fromString(dashed);
+
+    @Benchmark
+    public UUID fromString() {
+        return UndashedUuid.fromString(undashed);
+    }
+
+    @Benchmark
+    public UUID fromStringLenientUndashed() {
+        return UndashedUuid.fromStringLenient(undashed);
+    }
+
+    @Benchmark
+    public UUID fromStringLenientDashed() {
+        return UndashedUuid.fromStringLenient(dashed);
+    }
+
+    @Benchmark
+    public String toUndashedString() {
+        return UndashedUuid.toString(uuid);
+    }
+}
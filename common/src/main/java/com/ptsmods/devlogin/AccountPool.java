@@ -0,0 +1,184 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands every client that is started with {@code --msa-pool} a different one of the stored accounts,
+ * so many clients can be started at the same time, each with its own identity, without anyone having to log in.
+ * <p>
+ * Which client uses which account is kept track of with leases in {@code leases.json} in the DevLogin directory,
+ * which every client updates while holding its lock, so no two clients ever get the same account.
+ * A client renews its lease while it's running and releases it when it exits. If it doesn't get to,
+ * because it crashed or was killed, its lease expires after the duration set with the {@code devlogin.leaseDuration}
+ * system property in milliseconds, 60000 by default, after which the account is handed to the next client that needs one.
+ * <p>
+ * Only accounts that can log in without the user, because they have a refresh token or a token that is still valid, are handed out.
+ * An account that failed to log in anyway is not handed to any client for the duration set with the {@code devlogin.poolCooldown}
+ * system property in milliseconds, 300000 by default, so clients don't all try it in turn.
+ */
+public class AccountPool {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-AccountPool");
+    private static final SharedJsonFile<Leases> file = new SharedJsonFile<>(DevLogin.getDirectory().resolve("leases.json"), Leases.class, Leases::new);
+    private static final String holder = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID(); // pid@host, made unique.
+    private static String leased;
+    private static ScheduledFuture<?> renewal;
+    private static boolean hooked;
+
+    /**
+     * Leases an account that no other client is using. A JVM only ever leases a single account,
+     * so calling this again returns the same account as long as the lease is held.
+     * @return The undashed UUID of the leased account or {@code null} if every account in the pool is in use.
+     */
+    public static synchronized String lease() {
+        if (leased != null) return leased;
+
+        Map<String, Map<String, String>> candidates = getCandidates();
+        AtomicReference<String> result = new AtomicReference<>();
+        try {
+            file.update(leases -> {
+                long now = System.currentTimeMillis();
+                leases.leases.values().removeIf(lease -> lease.expires <= now);
+                leases.failed.values().removeIf(until -> until <= now);
+
+                for (String id : candidates.keySet())
+                    if (!leases.leases.containsKey(id) && !leases.failed.containsKey(id)) {
+                        leases.leases.put(id, new Lease(holder, now + getDuration()));
+                        result.set(id);
+                        break;
+                    }
+                return leases;
+            });
+        } catch (IOException e) {
+            LOG.error("Could not lease an account.", e);
+            return null;
+        }
+
+        if (result.get() == null) {
+            LOG.error("All " + candidates.size() + " accounts in the pool that can log in by themselves are in use or recently failed to log in.");
+            return null;
+        }
+
+        leased = result.get();
+        LOG.info("Leased account " + candidates.get(leased).get("profileName") + ".");
+
+        // Renewed well before it expires, so a slow update doesn't cost us the lease.
+        long interval = Math.max(getDuration() / 3, 1);
+        renewal = DevLogin.getScheduler().scheduleAtFixedRate(AccountPool::renew, interval, interval, TimeUnit.MILLISECONDS);
+        if (!hooked) {
+            hooked = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(AccountPool::release, "DevLogin-AccountPoolShutdown"));
+        }
+
+        return leased;
+    }
+
+    /**
+     * @return The amount of accounts that can be handed out, whether they're in use or not.
+     */
+    public static int getSize() {
+        return getCandidates().size();
+    }
+
+    /**
+     * Releases the leased account, if any, so another client can use it.
+     */
+    public static void release() {
+        release(false);
+    }
+
+    /**
+     * Releases the leased account, if any, because it failed to log in,
+     * and keeps it from being handed to any client until the cooldown has passed.
+     */
+    public static void reject() {
+        release(true);
+    }
+
+    private static synchronized void release(boolean failed) {
+        if (leased == null) return;
+
+        String id = leased;
+        leased = null;
+        renewal.cancel(false);
+        try {
+            file.update(leases -> {
+                Lease lease = leases.leases.get(id);
+                if (lease != null && holder.equals(lease.holder)) leases.leases.remove(id);
+                if (failed) leases.failed.put(id, System.currentTimeMillis() + getCooldown());
+                return leases;
+            });
+        } catch (IOException e) {
+            LOG.error("Could not release account.", e);
+        }
+    }
+
+    private static synchronized void renew() {
+        if (leased == null) return;
+
+        String id = leased;
+        AtomicBoolean lost = new AtomicBoolean();
+        try {
+            file.update(leases -> {
+                Lease lease = leases.leases.get(id);
+                // The lease may have expired while e.g. the JVM was suspended. As long as no one took it over, it's still ours.
+                if (lease == null || holder.equals(lease.holder)) leases.leases.put(id, new Lease(holder, System.currentTimeMillis() + getDuration()));
+                else lost.set(true);
+                return leases;
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not renew the lease of the account, retrying soon.", e);
+            return;
+        }
+
+        if (lost.get()) {
+            LOG.warn("The lease of the account expired and it was leased by another client, both are now using it.");
+            leased = null;
+            renewal.cancel(false);
+        }
+    }
+
+    private static Map<String, Map<String, String>> getCandidates() {
+        Map<String, Map<String, String>> candidates = TokenStore.getAll();
+        candidates.values().removeIf(data -> !canLogin(data));
+        return candidates;
+    }
+
+    /**
+     * @return Whether the account with the given data can log in without the user having to do anything.
+     */
+    private static boolean canLogin(Map<String, String> data) {
+        return data.get("refreshToken") != null || data.get("mcToken") != null && MSA.getTokenExpiry(data.get("mcToken")) > System.currentTimeMillis();
+    }
+
+    private static long getDuration() {
+        return Long.getLong("devlogin.leaseDuration", TimeUnit.MINUTES.toMillis(1));
+    }
+
+    private static long getCooldown() {
+        return Long.getLong("devlogin.poolCooldown", TimeUnit.MINUTES.toMillis(5));
+    }
+
+    private static class Leases {
+        private Map<String, Lease> leases = new LinkedHashMap<>(); // Undashed UUID -> lease
+        private Map<String, Long> failed = new LinkedHashMap<>(); // Undashed UUID -> epoch millis until which it's not handed out
+    }
+
+    private static class Lease {
+        private String holder;
+        private long expires; // Epoch millis
+
+        private Lease(String holder, long expires) {
+            this.holder = holder;
+            this.expires = expires;
+        }
+    }
+}
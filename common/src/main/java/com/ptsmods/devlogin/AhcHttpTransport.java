@@ -0,0 +1,165 @@
+package com.ptsmods.devlogin;
+
+import org.asynchttpclient.*;
+import org.asynchttpclient.proxy.ProxyServer;
+import org.asynchttpclient.proxy.ProxyType;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests with async-http-client, which doesn't need a thread per request and reports how long connecting took,
+ * at the cost of loading and starting Netty. Only used if the {@code devlogin.http} system property is set to {@code ahc},
+ * this is the only class that refers to it, so it's never loaded otherwise.
+ */
+class AhcHttpTransport implements HttpTransport {
+    private final AsyncHttpClient client;
+
+    AhcHttpTransport(Proxy proxy) {
+        client = createClient(proxy);
+    }
+
+    @Override
+    public CompletableFuture<Response> send(Request request, int timeout, Listener listener) {
+        BoundRequestBuilder req = client.prepare(request.getMethod(), request.getUrl()).setRequestTimeout(timeout);
+
+        if (request.getBody() != null) req.setBody(request.getBody());
+
+        if (!request.getHeaders().isEmpty()) req.setSingleHeaders(request.getHeaders());
+
+        return req.execute(new ListeningHandler(listener)).toCompletableFuture().thenApply(AhcResponse::new);
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    private static AsyncHttpClient createClient(Proxy proxy) {
+        AtomicInteger threadCount = new AtomicInteger();
+        DefaultAsyncHttpClientConfig.Builder clientConfig = new DefaultAsyncHttpClientConfig.Builder()
+                .setConnectTimeout(5000)
+                .setRequestTimeout(10000)
+                .setReadTimeout(10000)
+                .setKeepAlive(true)
+                .setPooledConnectionIdleTimeout(60000)
+                .setMaxConnectionsPerHost(4)
+                // We only ever have a couple of requests in flight, no need for more threads.
+                .setIoThreadsCount(2)
+                .setThreadFactory(r -> {
+                    Thread thread = new Thread(r, "DevLogin-Http-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true); // Must never keep the game from exiting.
+                    return thread;
+                });
+
+        // Turn Proxy into a ProxyServer.
+        if (proxy.type() != Proxy.Type.DIRECT) {
+            InetSocketAddress aproxy = (InetSocketAddress) proxy.address();
+            ProxyType tproxy = proxy.type() == Proxy.Type.SOCKS ? ProxyType.SOCKS_V5 : ProxyType.HTTP;
+            ProxyServer.Builder proxyServer = new ProxyServer.Builder(aproxy.getHostName(), aproxy.getPort())
+                    .setProxyType(tproxy);
+
+            // Credentials passed with --proxyUser and --proxyPass are registered with the default Authenticator.
+            PasswordAuthentication auth = Authenticator.requestPasswordAuthentication(aproxy.getHostName(), null, aproxy.getPort(),
+                    tproxy.name(), "DevLogin", null);
+            if (auth != null)
+                proxyServer.setRealm(new Realm.Builder(auth.getUserName(), new String(auth.getPassword()))
+                        .setScheme(Realm.AuthScheme.BASIC)
+                        .setUsePreemptiveAuth(true)
+                        .build());
+
+            clientConfig.setProxyServer(proxyServer.build());
+        }
+
+        return new DefaultAsyncHttpClient(clientConfig.build());
+    }
+
+    /**
+     * Passes the progress the client reports on to a {@link Listener}.
+     */
+    private static class ListeningHandler extends AsyncCompletionHandlerBase {
+        private final Listener listener;
+        private long dnsStart, connectStart, tlsStart;
+
+        private ListeningHandler(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onHostnameResolutionAttempt(String name) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void onHostnameResolutionSuccess(String name, List<InetSocketAddress> addresses) {
+            listener.onHostnameResolved(System.nanoTime() - dnsStart);
+        }
+
+        @Override
+        public void onTcpConnectAttempt(InetSocketAddress remoteAddress) {
+            connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void onTcpConnectSuccess(InetSocketAddress remoteAddress, io.netty.channel.Channel connection) {
+            listener.onConnected(System.nanoTime() - connectStart);
+        }
+
+        @Override
+        public void onTlsHandshakeAttempt() {
+            tlsStart = System.nanoTime();
+        }
+
+        @Override
+        public void onTlsHandshakeSuccess(SSLSession sslSession) {
+            listener.onTlsHandshake(System.nanoTime() - tlsStart);
+        }
+
+        @Override
+        public void onRetry() {
+            listener.onRetry();
+        }
+
+        @Override
+        public State onStatusReceived(HttpResponseStatus status) throws Exception {
+            listener.onStatus(status.getStatusCode());
+            return super.onStatusReceived(status);
+        }
+    }
+
+    private static class AhcResponse implements Response {
+        private final org.asynchttpclient.Response response;
+
+        private AhcResponse(org.asynchttpclient.Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return response.getHeader(name);
+        }
+
+        @Override
+        public byte[] getBodyAsBytes() {
+            return response.getResponseBodyAsBytes();
+        }
+
+        @Override
+        public InputStream getBodyAsStream() {
+            return response.getResponseBodyAsStream();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.ptsmods.devlogin;
+
+import java.util.*;
+
+/**
+ * Parses the launch arguments and rewrites them with the data of an {@link AuthenticationProfile}
+ * in a single pass over the args, without any regular expressions.
+ * <p>
+ * Args are parsed the same way JOptSimple parsed them when DevLogin still used it:
+ * DevLogin's own options may be abbreviated to any unique prefix, may be passed as {@code --option=value}
+ * and always take the next arg as their value if they require one. All other {@code --args} are kept and
+ * only take the next arg as their value if it does not look like an option itself.
+ * Args that are neither an option nor a value are dropped, as are options that were passed without a value.
+ * <p>
+ * Where JOptSimple threw and kept the game from launching, the args are parsed anyway: DevLogin's own options that were passed
+ * more than once use their first value, other args may be passed as {@code --arg=value}, single-dash args that aren't one of
+ * DevLogin's options are dropped and a second {@code --} ends the other args too.
+ */
+class ArgsRewriter {
+    private final Map<String, Boolean> options = new LinkedHashMap<>(); // Option name -> whether it requires an argument
+    private final Map<String, String> defaults = new HashMap<>();
+
+    /**
+     * Registers an option that does not take a value.
+     * @param name The name of the option
+     * @return This rewriter
+     */
+    ArgsRewriter accepts(String name) {
+        options.put(name, false);
+        return this;
+    }
+
+    /**
+     * Registers an option that requires a value.
+     * @param name The name of the option
+     * @return This rewriter
+     */
+    ArgsRewriter acceptsWithArg(String name) {
+        options.put(name, true);
+        return this;
+    }
+
+    /**
+     * Registers an option that requires a value and falls back to the given value if it was not passed.
+     * @param name The name of the option
+     * @param defaultValue The value to use if the option was not passed
+     * @return This rewriter
+     */
+    ArgsRewriter acceptsWithArg(String name, String defaultValue) {
+        defaults.put(name, defaultValue);
+        return acceptsWithArg(name);
+    }
+
+    /**
+     * Parses the given args.
+     * @param args The args to parse
+     * @return The parsed args
+     * @throws IllegalArgumentException If an option that requires a value was passed without one.
+     */
+    ParsedArgs parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        Map<String, List<String>> excess = new LinkedHashMap<>();
+        List<String> pending = null; // The values of the last excess option, if it could still take a value.
+        boolean terminated = false, excessTerminated = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (arg.equals("--")) {
+                // The first -- ends DevLogin's options, any one after that ends the excess options too.
+                if (terminated) excessTerminated = true;
+                terminated = true;
+                pending = null;
+                continue;
+            }
+
+            boolean looksLikeOption = arg.length() > 1 && arg.charAt(0) == '-';
+            if (looksLikeOption && !terminated) {
+                int start = arg.charAt(1) == '-' ? 2 : 1;
+                int eq = arg.indexOf('=', start);
+                String option = find(arg.substring(start, eq == -1 ? arg.length() : eq));
+
+                if (option != null) {
+                    String value = null;
+                    if (options.get(option)) {
+                        if (eq != -1) value = arg.substring(eq + 1);
+                        else if (i + 1 < args.length) value = args[++i];
+                        else throw new IllegalArgumentException("Option " + option + " requires an argument");
+                    }
+
+                    if (!values.containsKey(option)) values.put(option, value);
+                    continue;
+                }
+            }
+
+            if (excessTerminated) continue;
+
+            if (looksLikeOption) {
+                if (!arg.startsWith("--")) {
+                    // Single-dash args are not passed on.
+                    pending = null;
+                    continue;
+                }
+
+                int eq = arg.indexOf('=');
+                String key = arg.substring(2, eq == -1 ? arg.length() : eq);
+                List<String> list = excess.get(key);
+                if (list == null) excess.put(key, list = new ArrayList<>(1));
+
+                if (eq == -1) pending = list;
+                else {
+                    list.add(arg.substring(eq + 1));
+                    pending = null;
+                }
+            } else if (pending != null) {
+                pending.add(arg);
+                pending = null;
+            }
+        }
+
+        return new ParsedArgs(values, defaults, excess);
+    }
+
+    /**
+     * Picks this rewriter's own options and their values out of the given args and drops everything else.
+     * Used when the args aren't known exactly, as is the case for the command line the JVM was started with, where every arg
+     * that contains a space was split in two. Such pieces are never mistaken for an option this way, unlike when parsing them all.
+     * @param args The args to pick the options from
+     * @return The options of this rewriter that were passed, with their values.
+     */
+    String[] retainOwn(String[] args) {
+        List<String> own = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--")) break; // Ends DevLogin's options, like when parsing.
+            if (arg.length() < 2 || arg.charAt(0) != '-') continue;
+
+            int start = arg.charAt(1) == '-' ? 2 : 1;
+            int eq = arg.indexOf('=', start);
+            String option = find(arg.substring(start, eq == -1 ? arg.length() : eq));
+            if (option == null) continue;
+
+            own.add(arg);
+            if (options.get(option) && eq == -1 && i + 1 < args.length) own.add(args[++i]);
+        }
+
+        return own.toArray(new String[0]);
+    }
+
+    /**
+     * @param name The name or abbreviation of an option
+     * @return The option with the given name, the only option starting with the given name or {@code null} if there is none.
+     */
+    private String find(String name) {
+        if (name.isEmpty()) return null;
+        if (options.containsKey(name)) return name;
+
+        String found = null;
+        for (String option : options.keySet())
+            if (option.startsWith(name)) {
+                if (found != null) return null; // Ambiguous
+                found = option;
+            }
+
+        return found;
+    }
+
+    static class ParsedArgs {
+        private final Map<String, String> values, defaults;
+        private final Map<String, List<String>> excess;
+
+        private ParsedArgs(Map<String, String> values, Map<String, String> defaults, Map<String, List<String>> excess) {
+            this.values = values;
+            this.defaults = defaults;
+            this.excess = excess;
+        }
+
+        /**
+         * @param option The name of the option
+         * @return Whether the option was passed
+         */
+        boolean has(String option) {
+            return values.containsKey(option);
+        }
+
+        /**
+         * @param option The name of the option
+         * @return The value of the option, its default value if it was not passed or {@code null} if it has none.
+         */
+        String valueOf(String option) {
+            return has(option) ? values.get(option) : defaults.get(option);
+        }
+
+        /**
+         * @param option The name of the option
+         * @return The value of the option parsed as an integer or {@code null} if it has none.
+         * @throws NumberFormatException If the value is not an integer.
+         */
+        Integer intValueOf(String option) {
+            String value = valueOf(option);
+            return value == null ? null : Integer.valueOf(value);
+        }
+
+        /**
+         * @return A map with the names of the args that are not used by DevLogin as keys and their values as values,
+         * in the order in which they were first passed.
+         */
+        Map<String, List<String>> getExcess() {
+            return excess;
+        }
+
+        /**
+         * Rewrites all args that are not used by DevLogin, overriding those the given profile supplies.
+         * Every arg is turned into {@code --arg value} for each of its values, which is the only method of
+         * multiple values supported by JOptSimple.
+         * @param profile The profile to override the args with or {@code null} to keep them as they are.
+         * @return The rewritten args
+         */
+        String[] rewrite(AuthenticationProfile profile) {
+            if (profile != null) profile.put(excess);
+
+            int size = 0;
+            for (List<String> values : excess.values())
+                for (String value : values) if (value != null) size += 2;
+
+            String[] args = new String[size];
+            int i = 0;
+            for (Map.Entry<String, List<String>> entry : excess.entrySet()) {
+                String key = null;
+                for (String value : entry.getValue()) {
+                    if (value == null) continue;
+                    if (key == null) key = "--" + entry.getKey();
+
+                    args[i++] = key;
+                    args[i++] = value;
+                }
+            }
+
+            return args;
+        }
+    }
+}
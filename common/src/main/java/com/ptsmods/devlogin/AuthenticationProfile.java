@@ -26,7 +26,7 @@ public class AuthenticationProfile {
         args.put("uuid", Collections.singletonList(getId().toString()));
 
         // Access token and type will not be null in case of an actual login,
-        // profileProperties will not be null in case of mimicking
+        // profileProperties will not be null in case of mimicking and usually not in case of an MSA login
         if (getAccessToken() != null) args.put("accessToken", Collections.singletonList(getAccessToken()));
         if (getType() != null) args.put("userType", Collections.singletonList(type.name().toLowerCase(Locale.ROOT)));
         if (getProperties() != null) args.put("profileProperties", Collections.singletonList('"' + getProperties().replace("\"", "\\\"") + '"'));
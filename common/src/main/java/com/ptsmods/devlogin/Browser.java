@@ -0,0 +1,50 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Opens pages in the user's default browser using the tools the operating system provides,
+ * rather than {@code java.awt.Desktop}, which would load and initialise AWT.
+ */
+class Browser {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-Browser");
+    private static Predicate<String> opener;
+
+    /**
+     * Replaces the user's browser, e.g. by something that follows the pages that are opened without showing them,
+     * to log in against a local stand-in for Microsoft without anyone having to click anything.
+     * @param opener Opens the given URL and returns whether it did or {@code null} to use the user's browser again.
+     */
+    static synchronized void setOpener(Predicate<String> opener) {
+        Browser.opener = opener;
+    }
+
+    /**
+     * @param url The URL to open
+     * @return Whether a browser was started, which does not guarantee the page will be shown.
+     */
+    static boolean open(String url) {
+        Predicate<String> opener;
+        synchronized (Browser.class) {
+            opener = Browser.opener;
+        }
+        if (opener != null) return opener.test(url);
+
+        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+        String[] command = os.startsWith("windows") ? new String[] {"rundll32", "url.dll,FileProtocolHandler", url} :
+                os.startsWith("mac") ? new String[] {"open", url} : new String[] {"xdg-open", url};
+
+        try {
+            new ProcessBuilder(command).inheritIO().start(); // Nothing reads its output, so it must not be piped.
+            return true;
+        } catch (IOException e) {
+            LOG.debug("Could not open browser.", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Quickly finds out whether the services DevLogin uses can be reached at all, e.g. so that launching without a network connection
+ * doesn't wait for every request to time out. Checked by connecting to each service (or to the proxy) alongside the first requests,
+ * which takes a couple of milliseconds when there's no network at all.
+ * <p>
+ * Only failures that leave no doubt, like a hostname that can't be resolved or a network that can't be routed to, count.
+ * Services that merely take long to connect to may just be behind a slow connection, so once the timeout of the check has passed
+ * without every service having failed like that, the services are assumed to be reachable and requests are left to their own timeouts.
+ * <p>
+ * While the services are known to be unreachable, requests fail right away (see {@link Resilience}) and Microsoft account logins use the
+ * cached profile. The next check is done once the result is older than the circuit cooldown, so the services are tried again eventually.
+ * <p>
+ * Configured with the following system properties:
+ * <ul>
+ *     <li>{@code devlogin.connectivityCheck}: whether to check at all, {@code true} by default.</li>
+ *     <li>{@code devlogin.connectivityTimeout}: the time in milliseconds after which the services are assumed to be reachable
+ *     if they could neither be connected to nor failed outright, 2000 by default.</li>
+ * </ul>
+ */
+public class Connectivity {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-Connectivity");
+    private static CompletableFuture<Boolean> check;
+    private static long checked;
+
+    /**
+     * Starts checking whether the services can be reached, unless that is being or was recently checked already.
+     * @param proxy The proxy requests are routed through. If it's not a direct connection, only the proxy is checked.
+     * @return A future that completes with {@code false} if all services failed outright and with {@code true} otherwise.
+     */
+    public static synchronized CompletableFuture<Boolean> check(Proxy proxy) {
+        if (!Boolean.parseBoolean(System.getProperty("devlogin.connectivityCheck", "true"))) return CompletableFuture.completedFuture(true);
+        if (check != null && (!check.isDone() || System.currentTimeMillis() - checked < getCooldown())) return check;
+
+        Set<InetSocketAddress> targets = new LinkedHashSet<>();
+        if (proxy.type() != Proxy.Type.DIRECT) targets.add((InetSocketAddress) proxy.address());
+        else for (Endpoint endpoint : Endpoint.values()) {
+            URI uri = URI.create(endpoint.getUrl());
+            targets.add(InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort() != -1 ? uri.getPort() : "http".equals(uri.getScheme()) ? 80 : 443));
+        }
+
+        CompletableFuture<Boolean> future = check = new CompletableFuture<>();
+        checked = System.currentTimeMillis();
+        int timeout = Integer.getInteger("devlogin.connectivityTimeout", 2000);
+        long start = System.nanoTime();
+        AtomicInteger failed = new AtomicInteger();
+        for (InetSocketAddress target : targets) {
+            // Resolving the hostname can't be given a timeout, so every target gets a thread of its own rather than waiting on each other.
+            Thread thread = new Thread(() -> {
+                Boolean connected = connect(target, timeout);
+                if (connected == null) return; // Timed out, which the timeout of the check itself takes care of.
+
+                if (connected) future.complete(true);
+                else if (failed.incrementAndGet() == targets.size()) {
+                    LOG.warn("Could not connect to " + (proxy.type() == Proxy.Type.DIRECT ? "any of the authentication services" : "the proxy") +
+                            " (took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms), assuming there is no network connection.");
+                    // Resolving may fail only after the check timed out. Requests sent in the meantime are left to finish, later ones are skipped.
+                    if (!future.complete(false)) failedLate(future);
+                }
+            }, "DevLogin-Connectivity");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        DevLogin.getScheduler().schedule(() -> {
+            if (future.complete(true)) LOG.debug("Connecting took longer than " + timeout + " ms, assuming the connection is merely slow.");
+        }, timeout, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * @return The check that is running or was done last, or {@code null} if none was started yet.
+     */
+    static synchronized CompletableFuture<Boolean> getCheck() {
+        return check;
+    }
+
+    /**
+     * @return Whether the last check found that none of the services could be reached and that was recently enough to still assume so.
+     */
+    public static synchronized boolean isOffline() {
+        return check != null && check.isDone() && !check.join() && System.currentTimeMillis() - checked < getCooldown();
+    }
+
+    private static synchronized void failedLate(CompletableFuture<Boolean> future) {
+        if (check != future) return;
+        check = CompletableFuture.completedFuture(false);
+        checked = System.currentTimeMillis();
+    }
+
+    /**
+     * @return Whether the target could be connected to, or {@code null} if that timed out, which says nothing about whether it can be.
+     */
+    private static Boolean connect(InetSocketAddress target, int timeout) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(target.getHostString(), target.getPort()), timeout);
+            return true;
+        } catch (SocketTimeoutException e) {
+            LOG.debug("Connecting to " + target.getHostString() + ":" + target.getPort() + " timed out.");
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            // E.g. an UnknownHostException or NoRouteToHostException, which happen right away when there's no network.
+            LOG.debug("Could not connect to " + target.getHostString() + ":" + target.getPort() + " (" + e + ").");
+            return false;
+        }
+    }
+
+    private static long getCooldown() {
+        return Long.getLong("devlogin.circuitCooldown", 30000);
+    }
+
+    /**
+     * Thrown when a request is not sent because none of the services could be reached.
+     */
+    public static class OfflineException extends IOException {
+        OfflineException(String url) {
+            super("Skipped request to " + url + " as there is no network connection.");
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.regex.Pattern;
+
+/**
+ * Logs messages instead of showing them, replacing links with their URL, dropping any other tags and unescaping what's left.
+ */
+class ConsoleLoginUi implements LoginUi {
+    static final ConsoleLoginUi INSTANCE = new ConsoleLoginUi();
+    private static final Logger LOG = LogManager.getLogger("DevLogin-MSA");
+    private static final Pattern urlPattern = Pattern.compile("<a href=\"(.*?)\">.*?</a>"), tagPattern = Pattern.compile("<([A-Za-z]*?).*?>(.*?)</\\1>");
+
+    private ConsoleLoginUi() {}
+
+    @Override
+    public Handle show(String title, String message, Runnable onClose) {
+        LOG.info("\n-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-\n" +
+                unescape(tagPattern.matcher(urlPattern.matcher(message).replaceAll("$1")).replaceAll("$2").replace("<br>", "\n")) +
+                "\n-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-");
+
+        return () -> {}; // Can't take back what's been logged.
+    }
+
+    /**
+     * Reverses {@link LoopbackServer#escape(String)}.
+     */
+    private static String unescape(String s) {
+        return s.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&#39;", "'").replace("&amp;", "&");
+    }
+}
@@ -1,83 +1,276 @@
 package com.ptsmods.devlogin;
 
-import com.google.gson.Gson;
-import joptsimple.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.function.BinaryOperator;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.*;
 
 public class DevLogin {
     private static final Logger LOG = LogManager.getLogger("DevLogin");
 
+    private static ScheduledExecutorService scheduler;
+    private static AuthenticationProfile launchProfile;
+    private static CompletableFuture<AuthenticationProfile> earlyLogin;
+    private static Thread earlyLoginThread;
+    private static MSA earlyMsa;
+    private static List<?> earlyLoginKey;
+    private static long earlyLoginStart, earlyLoginEnd;
+
+    /**
+     * Starts logging in on a background thread if the {@code --devlogin-early} argument was passed.
+     * Called as soon as DevLogin is loaded, long before the game's main method is invoked, so that
+     * the login can run alongside the rest of the early bootstrap. The result is picked up by {@link #modifyArgs(String[])}.
+     * <p>
+     * This is best-effort: the args are taken from the command line the JVM was started with, which can't be split back into
+     * the original args faithfully if any of them contain spaces. Only DevLogin's own options are read from it, so spaces in
+     * e.g. the game directory don't matter, but if the login turns out to have been started with different options than the game
+     * was, e.g. because an account name contains a space, it's abandoned and the game logs in as usual.
+     */
+    public static synchronized void startEarlyLogin() {
+        // The arguments the game will be started with are not available yet,
+        // but the command line the JVM was started with is.
+        String command = System.getProperty("sun.java.command");
+        if (earlyLogin != null || command == null) return;
+
+        ArgsRewriter rewriter = createRewriter();
+        // Also contains the main class or jar, which is never mistaken for an option.
+        String[] args = rewriter.retainOwn(command.split(" "));
+        if (!Arrays.asList(args).contains("--devlogin-early")) return;
+
+        ArgsRewriter.ParsedArgs options;
+        try {
+            options = rewriter.parse(args);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Could not parse the command line, not logging in early.", e);
+            return;
+        }
+
+        earlyLoginKey = getLoginKey(options);
+        earlyLoginStart = System.nanoTime();
+        Timings.begin();
+        CompletableFuture<AuthenticationProfile> future = earlyLogin = new CompletableFuture<>();
+
+        Thread thread = new Thread(() -> {
+            try {
+                AuthenticationProfile profile = login(options, getProxy(options));
+                earlyLoginEnd = System.nanoTime();
+                future.complete(profile);
+            } catch (Throwable t) {
+                earlyLoginEnd = System.nanoTime();
+                future.completeExceptionally(t);
+            }
+        }, "DevLogin-EarlyLogin");
+        thread.setDaemon(true);
+        thread.start();
+        earlyLoginThread = thread;
+        LOG.info("Started logging in early.");
+    }
+
     /**
      * Does the actual args modification. Takes in an array of args and puts out an array of (possibly modified) args.
      * @param args The args to modify
      * @return An array of (possibly modified) args
      */
     public static String[] modifyArgs(String[] args) {
-        OptionParser parser = new OptionParser();
-        parser.allowsUnrecognizedOptions();
-        NonOptionArgumentSpec<String> nonOptionsSpec = parser.nonOptions(); // Used to get any args we don't need, but were passed.
-        ArgumentAcceptingOptionSpec<String> mimicPlayerSpec = parser.accepts("mimicPlayer").withRequiredArg();
-        // MSA-related args don't need any values
-        parser.accepts("msa");
-        parser.accepts("msa-nostore");
-        parser.accepts("msa-no-dialog");
-
-        // Proxy-related specs
-        parser.accepts("proxyHost").withRequiredArg();
-        ArgumentAcceptingOptionSpec<Integer> proxyPortSpec = parser.accepts("proxyPort").withRequiredArg().ofType(Integer.class).defaultsTo(8080);
-        parser.accepts("proxyUser").withRequiredArg();
-        parser.accepts("proxyPass").withRequiredArg();
-
-        OptionSet options = parser.parse(args);
-        Proxy proxy = getProxy(options, proxyPortSpec);
-
-        // Get the AuthenticationProfile that fits the arguments passed.
-        // The priority is as follows: mimicking -> msa
-        AuthenticationProfile profile = options.has(mimicPlayerSpec) ? mimicPlayer(proxy, options.valueOf(mimicPlayerSpec)) : // Mimic player
+        ArgsRewriter.ParsedArgs options = createRewriter().parse(args);
+        Proxy proxy = getProxy(options);
+        String loginType = getLoginType(options);
+        if (loginType != null) Timings.begin();
+
+        AuthenticationProfile profile = awaitEarlyLogin(options);
+        if (profile == null) profile = login(options, proxy);
+        launchProfile = profile;
+        if (loginType != null) Timings.finish(loginType, profile != null);
+
+        // Any args we don't need, but were passed, are passed on to the game,
+        // with the ones the profile supplies overridden.
+        return options.rewrite(profile);
+    }
+
+    /**
+     * Creates the rewriter used to parse the args DevLogin uses.
+     * @return A rewriter that accepts all DevLogin args and keeps any other args.
+     */
+    static ArgsRewriter createRewriter() {
+        return new ArgsRewriter()
+                .acceptsWithArg("mimicPlayer")
+                .acceptsWithArg("mimicPlayers")
+                .acceptsWithArg("mimicIndex", "0")
+                // MSA-related args don't need any values
+                .accepts("msa")
+                .accepts("msa-nostore")
+                .accepts("msa-no-dialog")
+                .acceptsWithArg("msa-account")
+                .accepts("msa-broker")
+                .accepts("msa-pool")
+                .accepts("devlogin-early")
+
+                // Proxy-related args
+                .acceptsWithArg("proxyHost")
+                .acceptsWithArg("proxyPort", "8080")
+                .acceptsWithArg("proxyUser")
+                .acceptsWithArg("proxyPass");
+    }
+
+    /**
+     * Gets the AuthenticationProfile that fits the arguments passed.
+     * The priority is as follows: mimicking -> mimicking one of many -> msa
+     * @param options The parsed args
+     * @param proxy The proxy to do all requests with
+     * @return The AuthenticationProfile to launch the game with or {@code null} if none was requested or the login failed.
+     */
+    private static AuthenticationProfile login(ArgsRewriter.ParsedArgs options, Proxy proxy) {
+        List<String> assetsDir = options.getExcess().get("assetsDir");
+        Textures.setAssetsDirectory(assetsDir == null || assetsDir.isEmpty() ? null : Paths.get(assetsDir.get(0)));
+
+        return options.has("mimicPlayer") ? mimicPlayer(proxy, options.valueOf("mimicPlayer")) : // Mimic player
+                options.has("mimicPlayers") ? mimicPlayers(proxy, options.valueOf("mimicPlayers"), getMimicIndex(options)) : // Mimic one of many players
                 options.has("msa") || options.has("msa-nostore") ? // MSA login
-                        loginMSA(proxy, options.has("msa"), options.has("msa-no-dialog")) : null;
+                        options.has("msa-pool") ? loginPool(proxy, options) :
+                        options.has("msa-broker") ? loginBroker(proxy, options) :
+                        loginMSA(proxy, options.has("msa"), options.has("msa-no-dialog"), options.valueOf("msa-account")) : null;
+    }
+
+    /**
+     * @param options The parsed args
+     * @return The index of the player to mimic, {@code 0} if the mimicIndex argument is not a number.
+     */
+    private static int getMimicIndex(ArgsRewriter.ParsedArgs options) {
+        try {
+            return options.intValueOf("mimicIndex");
+        } catch (NumberFormatException e) {
+            LOG.warn("The mimicIndex argument must be a number, mimicking the first player instead.");
+            return 0;
+        }
+    }
+
+    /**
+     * @param options The parsed args
+     * @return The kind of login {@link #login(ArgsRewriter.ParsedArgs, Proxy)} will do or {@code null} if none was requested.
+     */
+    private static String getLoginType(ArgsRewriter.ParsedArgs options) {
+        return options.has("mimicPlayer") ? "mimicPlayer" : options.has("mimicPlayers") ? "mimicPlayers" :
+                options.has("msa") || options.has("msa-nostore") ? options.has("msa-pool") ? "pool" : options.has("msa-broker") ? "broker" : "msa" : null;
+    }
 
-        Map<String, List<String>> newArgs = parseExcessArgs(options.valuesOf(nonOptionsSpec));
-        if (profile != null) profile.put(newArgs);
+    /**
+     * @param options The parsed args
+     * @return All values that influence the outcome of {@link #login(ArgsRewriter.ParsedArgs, Proxy)}.
+     */
+    private static List<?> getLoginKey(ArgsRewriter.ParsedArgs options) {
+        return Arrays.asList(options.valueOf("mimicPlayer"), options.valueOf("mimicPlayers"), options.valueOf("mimicIndex"), options.has("msa"), options.has("msa-nostore"), options.has("msa-no-dialog"),
+                options.valueOf("msa-account"), options.has("msa-broker"), options.has("msa-pool"), options.valueOf("proxyHost"), options.valueOf("proxyPort"), options.valueOf("proxyUser"), options.valueOf("proxyPass"));
+    }
+
+    /**
+     * Remembers the MSA login if it's done by the early login, so that {@link #awaitEarlyLogin(ArgsRewriter.ParsedArgs)} can cancel it.
+     * @return Whether to go ahead with the login, which is not the case if the early login has been abandoned already.
+     */
+    private static synchronized boolean trackEarlyMsa(MSA msa) {
+        if (Thread.currentThread() != earlyLoginThread) return true;
+        if (earlyLoginThread.isInterrupted()) return false;
+
+        earlyMsa = msa;
+        return true;
+    }
+
+    /**
+     * Waits for the login started by {@link #startEarlyLogin()}, if any.
+     * @param options The parsed args the game is actually being started with
+     * @return The profile the early login resulted in or {@code null} if there was no early login,
+     * it failed or it was started with different arguments.
+     */
+    private static synchronized AuthenticationProfile awaitEarlyLogin(ArgsRewriter.ParsedArgs options) {
+        if (earlyLogin == null) return null;
+
+        CompletableFuture<AuthenticationProfile> future = earlyLogin;
+        earlyLogin = null;
+
+        if (!getLoginKey(options).equals(earlyLoginKey)) {
+            // The command line did not match the args we were given, we can't use this profile, so there's no use waiting for it.
+            LOG.warn("Early login was done with different arguments than the game was started with, logging in again.");
+            future.cancel(false);
+            // Keeps it from asking the user to authenticate, or closes the dialog asking them to if it already did.
+            if (earlyMsa != null) earlyMsa.cancel();
+            earlyLoginThread.interrupt(); // It then stops waiting for the login and won't start one anymore if it hadn't yet.
+            return null;
+        }
+
+        long waitStart = System.nanoTime();
+        AuthenticationProfile profile;
+        try {
+            profile = future.join();
+        } catch (CompletionException e) {
+            LOG.error("Could not log in early.", e.getCause());
+            return null;
+        }
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart);
 
-        // Flatmap the args.
-        // In case an arg only has one value (which will be the case most of the time)
-        // this will just be turned into '--arg value'
-        // If the arg has multiple values, this will be turned into '--arg value1 --arg value2',
-        // which is the only method of multiple values supported by JOptSimple
-        return newArgs.entrySet().stream()
-                .flatMap(entry -> entry.getValue().stream()
-                        .filter(Objects::nonNull)
-                        .flatMap(s -> Stream.of("--" + entry.getKey(), s)))
-                .toArray(String[]::new);
+        long took = TimeUnit.NANOSECONDS.toMillis(earlyLoginEnd - earlyLoginStart);
+        LOG.info(String.format("Early login took %d ms, waited %d ms for it to finish. Saved %d ms of startup time.", took, waited, Math.max(took - waited, 0)));
+        return profile;
+    }
+
+    /**
+     * Gets the profile the game was launched with. If the game was launched with a Microsoft account,
+     * its token is refreshed in the background before it expires, in which case this returns the refreshed profile.
+     * Use this to get a valid token when e.g. reconnecting to a server after the game has been running for a long time.
+     * @return The current profile of the player the game was launched with or {@code null} if DevLogin did not log in.
+     */
+    public static AuthenticationProfile getCurrentProfile() {
+        if (launchProfile == null) return null;
+
+        AuthenticationProfile current = TokenRefresher.getCurrent(launchProfile.getId());
+        return current == null ? launchProfile : current;
+    }
+
+    /**
+     * @return A single-threaded scheduler for short tasks that have to run at a later time, like polling.
+     * Its thread is a daemon thread, so it never keeps the game from exiting.
+     */
+    public static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "DevLogin-Scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true); // Timeouts are usually cancelled long before they're due.
+            scheduler = executor;
+        }
+
+        return scheduler;
+    }
+
+    /**
+     * @return The directory DevLogin stores data that is shared by all run directories in.
+     * Defaults to {@code .devlogin} in the user's home directory, but can be changed with the {@code devlogin.dir} system property.
+     */
+    public static Path getDirectory() {
+        String dir = System.getProperty("devlogin.dir");
+        return dir != null ? Paths.get(dir) : Paths.get(System.getProperty("user.home"), ".devlogin");
     }
 
     /**
      * Parses the proxy from the passed args or {@link Proxy#NO_PROXY} if no proxy was specified.
-     * @param options The parsed OptionSet
-     * @param proxyPortSpec the proxy port spec as that's an int and not a string
+     * @param options The parsed args
      * @return Either {@link Proxy#NO_PROXY} if no proxy was passed, else the parsed proxy.
      */
-    private static Proxy getProxy(OptionSet options, ArgumentAcceptingOptionSpec<Integer> proxyPortSpec) {
+    private static Proxy getProxy(ArgsRewriter.ParsedArgs options) {
         Proxy proxy = Proxy.NO_PROXY;
 
-        String proxyHost = (String) options.valueOf("proxyHost");
-        Integer proxyPort = options.valueOf(proxyPortSpec);
+        String proxyHost = options.valueOf("proxyHost");
+        Integer proxyPort = options.intValueOf("proxyPort");
         if (proxyHost != null) proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(proxyHost, proxyPort));
 
-        String proxyUser = (String) options.valueOf("proxyUser");
-        String proxyPass = (String) options.valueOf("proxyPass");
+        String proxyUser = options.valueOf("proxyUser");
+        String proxyPass = options.valueOf("proxyPass");
         if (!proxy.equals(Proxy.NO_PROXY) && proxyUser != null && !proxyUser.isEmpty() && proxyPass != null && !proxyPass.isEmpty())
             // This will be overwritten once we progress in the logic of the Main#main(String[]) method, but until then, use this.
             Authenticator.setDefault(new Authenticator() {
@@ -90,32 +283,53 @@ public class DevLogin {
     }
 
     /**
-     * Parses all args that are not used by DevLogin, but likely are used by Minecraft.
-     * Parsing these args is the best way to override some arguments when needed (like accessToken)
-     * @param nonOptions The values of the NonOptions argument spec.
-     * @return A map with argument names keys and a list of argument values as values.
-     * Afaik, no arguments support/require multiple values, but in case anyone does, the support is there.
+     * Gets the profile to log in with from the {@link LoginBroker}.
+     * Falls back to logging in using the modern MSA way if no broker is running.
+     * @param proxy The proxy to do all requests with
+     * @param options The parsed args
+     * @return Either an {@link AuthenticationProfile} or {@code null} if the login was unsuccessful
+     */
+    private static AuthenticationProfile loginBroker(Proxy proxy, ArgsRewriter.ParsedArgs options) {
+        AuthenticationProfile profile;
+        try (Timings.Step step = Timings.step("broker")) {
+            profile = LoginBroker.request(options.valueOf("msa-account"));
+            if (profile != null) step.succeed();
+        }
+
+        if (profile != null) {
+            LOG.info("Logged in as " + profile.getUsername() + " using the login broker.");
+            return profile;
+        }
+
+        return loginMSA(proxy, options.has("msa"), options.has("msa-no-dialog"), options.valueOf("msa-account"));
+    }
+
+    /**
+     * Logs in with an account from the {@link AccountPool} that no other client is using.
+     * Never asks the user to authenticate or shows any dialogs, as there's usually no one watching the clients that use the pool.
+     * If the leased account fails to log in, the next free one is tried.
+     * @param proxy The proxy to do all requests with
+     * @param options The parsed args
+     * @return Either an {@link AuthenticationProfile} or {@code null} if no account was free or none of them could log in
      */
-    private static Map<String, List<String>> parseExcessArgs(List<String> nonOptions) {
-        OptionParser excessParser = new OptionParser();
+    private static AuthenticationProfile loginPool(Proxy proxy, ArgsRewriter.ParsedArgs options) {
+        // Every account that fails is skipped from then on, so this tries each one at most once.
+        for (int tries = AccountPool.getSize(); tries > 0; tries--) {
+            String account = AccountPool.lease();
+            if (account == null) return null;
 
-        nonOptions.stream()
-                .filter(s -> s.startsWith("--"))
-                .map(s -> s.substring(2))
-                .forEach(s -> excessParser.accepts(s, s).withOptionalArg());
+            AuthenticationProfile profile = loginMSA(proxy, options.has("msa"), true, account, false);
+            if (profile != null) return profile;
+            if (Connectivity.isOffline()) { // Not the account's fault, the others won't fare any better.
+                AccountPool.release();
+                return null;
+            }
 
-        Function<Map.Entry<OptionSpec<?>, List<?>>, String> keyMapper = entry -> ((ArgumentAcceptingOptionSpec<?>) entry.getKey()).description();
-        Function<Map.Entry<OptionSpec<?>, List<?>>, List<String>> valueMapper = entry -> entry.getValue().stream()
-                .map(String::valueOf)
-                .collect(Collectors.toList());
-        BinaryOperator<List<String>> mergeFunction = (list1, list2) -> {
-            list1.addAll(list2);
-            return list1;
-        };
+            LOG.warn("Could not log in with the leased account, trying the next one.");
+            AccountPool.reject();
+        }
 
-        OptionSet excessOptions = excessParser.parse(nonOptions.toArray(new String[0]));
-        return excessOptions.asMap().entrySet().stream()
-                .collect(Collectors.toMap(keyMapper, valueMapper, mergeFunction, LinkedHashMap::new));
+        return null;
     }
 
     /**
@@ -126,30 +340,67 @@ public class DevLogin {
      * @param proxy The proxy to do all requests with
      * @param store Whether to store the refresh token in a file
      * @param noDialog Whether to print the code in the console or show a dialog containing it.
+     * @param account The name or UUID of the stored account to login with or {@code null} to use the account that was used last.
      * @return Either an {@link AuthenticationProfile} or {@code null} if the login was unsuccessful
      */
-    private static AuthenticationProfile loginMSA(Proxy proxy, boolean store, boolean noDialog) {
-        try {
-            try {
-                MSA.login(proxy, store, noDialog);
-            } catch (Exception e) {
-                LOG.error("Could not login using Microsoft account.", e);
-                return null;
-            }
+    static AuthenticationProfile loginMSA(Proxy proxy, boolean store, boolean noDialog, String account) {
+        return loginMSA(proxy, store, noDialog, account, true);
+    }
 
-            if (!MSA.isLoggedIn() || MSA.getProfile() == null) {
-                final String message = "Either something went wrong or the account you used to login does not own Minecraft.";
-                if (noDialog) LOG.error(message);
-                else MSA.showDialog("DevLogin MSA Authentication - error", message);
-                return null;
-            }
+    /**
+     * Same as {@link #loginMSA(Proxy, boolean, boolean, String)}, but can be told not to ask the user to authenticate at all.
+     * @param interactive Whether the user may be asked to authenticate if the stored tokens can't be used.
+     */
+    static AuthenticationProfile loginMSA(Proxy proxy, boolean store, boolean noDialog, String account, boolean interactive) {
+        // If we know who's logging in, their properties can be fetched while logging in.
+        Map<String, String> stored = TokenStore.get(account);
+        String storedId = stored == null ? null : stored.get("profileId");
+        CompletableFuture<String> properties = storedId == null ? null : fetchProperties(proxy, storedId);
+
+        MSA msa = new MSA(proxy, store, noDialog, interactive);
+        if (!trackEarlyMsa(msa)) return null;
 
-            MSA.MinecraftProfile profile = MSA.getProfile();
-            LOG.info("Logged in as " + profile.getName() + " using a Microsoft account.");
-            return new AuthenticationProfile(profile.getName(), profile.getUuid(), profile.getToken(), AuthenticationProfile.Type.MSA, null);
-        } finally {
-            MSA.cleanup();
+        MSA.MinecraftProfile profile;
+        try {
+            profile = msa.login(account).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOG.error("Could not login using Microsoft account.", e.getCause());
+            return null;
+        }
+
+        if (profile == null) {
+            final String message = Connectivity.isOffline() ? "There is no network connection and no cached profile to use." :
+                    "Either something went wrong or the account you used to login does not own Minecraft.";
+            if (noDialog) LOG.error(message);
+            else LoginUi.get(false).show("DevLogin MSA Authentication - error", message, null);
+            return null;
         }
+
+        LOG.info("Logged in as " + profile.getName() + " using a Microsoft account.");
+        String id = UndashedUuid.toString(profile.getUuid());
+        if (!id.equals(storedId)) properties = fetchProperties(proxy, id);
+
+        AuthenticationProfile authProfile = new AuthenticationProfile(profile.getName(), profile.getUuid(), profile.getToken(), AuthenticationProfile.Type.MSA, getPropertiesNow(proxy, properties));
+
+        // Without a refresh token, there's no way to refresh it.
+        if (store) TokenRefresher.track(proxy, authProfile);
+        return authProfile;
+    }
+
+    /**
+     * Gets the properties fetched by {@link #fetchProperties(Proxy, String)} if they're in already, which they are if they were cached,
+     * and prefetches the textures they point to whenever they are. They're only needed for the skin, which the game can fetch itself, so the launch never waits for them.
+     * @return The properties or {@code null} if they haven't been fetched yet or could not be fetched.
+     */
+    private static String getPropertiesNow(Proxy proxy, CompletableFuture<String> future) {
+        future.thenAccept(properties -> Textures.prefetch(proxy, properties));
+
+        String properties = future.getNow(null);
+        if (!future.isDone()) LOG.info("Profile properties aren't in yet, the game will fetch them itself.");
+        return properties;
     }
 
     /**
@@ -165,12 +416,12 @@ public class DevLogin {
         try {
             id = UndashedUuid.fromString(mimicPlayer.replace("-", ""));
         } catch (Exception e) {
-            try {
-                id = UndashedUuid.fromString((String) new Gson().fromJson(new BufferedReader(
-                        new InputStreamReader(new URL("https://api.mojang.com/users/profiles/minecraft/" + mimicPlayer)
-                                .openConnection(proxy).getInputStream())), Map.class).get("id"));
+            try (Timings.Step step = Timings.step("mimicId")) {
+                id = UndashedUuid.fromString(MimicCache.getId(mimicPlayer, () -> Json.<Responses.Profile>read(
+                        get(proxy, Endpoint.MOJANG_API.resolve("/users/profiles/minecraft/" + mimicPlayer)), Responses.Profile.class).id));
+                step.succeed();
             } catch (IOException e0) {
-                LOG.error("Could not find player to mimic, an error occurred.", e);
+                LOG.error("Could not find player to mimic, an error occurred.", e0);
                 return null;
             } catch (NullPointerException e0) {
                 LOG.error("The mimicPlayer argument was set to an invalid username/UUID.");
@@ -178,16 +429,121 @@ public class DevLogin {
             }
         }
 
-        Map<?, ?> data;
+        String undashedId = UndashedUuid.toString(id);
+        MimicCache.Profile profile;
+        try (Timings.Step step = Timings.step("mimicProfile")) {
+            profile = MimicCache.getProfile(undashedId, () -> fetchSessionProfile(proxy, undashedId));
+            step.succeed();
+        } catch (IOException | NullPointerException e) {
+            LOG.error("Could not get data of the given player.");
+            return null;
+        }
+
+        LOG.info("Mimicking player " + profile.getName());
+        Textures.prefetch(proxy, profile.getProperties());
+        return new AuthenticationProfile(profile.getName(), id, null, null, profile.getProperties());
+    }
+
+    /**
+     * Fetches the name and signed properties of a player from the session server.
+     * @param proxy The proxy to do the request with
+     * @param undashedId The undashed UUID of the player
+     * @return The profile of the player
+     * @throws IOException If the request failed
+     * @throws NullPointerException If there is no such player
+     */
+    private static MimicCache.Profile fetchSessionProfile(Proxy proxy, String undashedId) throws IOException {
+        Responses.SessionProfile data = Json.read(get(proxy, Endpoint.SESSION_SERVER.resolve("/session/minecraft/profile/" +
+                undashedId + "?unsigned=false")), Responses.SessionProfile.class);
+        return new MimicCache.Profile(data.name, data.properties);
+    }
+
+    /**
+     * Fetches the signed properties of a player on another thread, so the textures they point to can be prefetched
+     * and the game does not have to fetch them itself. Uses the {@link MimicCache}, so usually no request is needed,
+     * in which case the properties are available right away.
+     * @param proxy The proxy to do the request with
+     * @param undashedId The undashed UUID of the player
+     * @return A future that completes with the properties of the player as JSON or {@code null} if they could not be fetched.
+     */
+    private static CompletableFuture<String> fetchProperties(Proxy proxy, String undashedId) {
+        MimicCache.Profile cached = MimicCache.getCachedProfile(undashedId, () -> fetchSessionProfile(proxy, undashedId));
+        if (cached != null) return CompletableFuture.completedFuture(cached.getProperties());
+
+        // The request and the cache's file lock can take a while, which the common pool is not meant for.
+        return CompletableFuture.supplyAsync(() -> {
+            try (Timings.Step step = Timings.step("profileProperties")) {
+                String properties = MimicCache.getProfile(undashedId, () -> fetchSessionProfile(proxy, undashedId)).getProperties();
+                step.succeed();
+                return properties;
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not fetch profile properties.", e);
+                return null;
+            }
+        }, MSA.getDefaultExecutor());
+    }
+
+    /**
+     * Resolves all passed players at once and picks one of them to mimic.
+     * Every client in a swarm of clients started with the same players resolves them, but only the first one
+     * actually makes requests, the others get them from the {@link MimicCache}.
+     * @param proxy The proxy to do all requests with
+     * @param players Comma-separated names or UUIDs of the players or a path to a file containing one per line prefixed with an {@code @}.
+     * @param index The index of the player this client should mimic.
+     * @return An {@link AuthenticationProfile} with the username and game profile of the player at the given index or
+     * {@code null} if it could not be found.
+     */
+    private static AuthenticationProfile mimicPlayers(Proxy proxy, String players, int index) {
+        List<String> playerList = new ArrayList<>();
         try {
-            data = new Gson().fromJson(new BufferedReader(new InputStreamReader(new URL("https://sessionserver.mojang.com/session/minecraft/profile/" +
-                    UndashedUuid.toString(id) + "?unsigned=false").openConnection(proxy).getInputStream())), Map.class);
+            for (String player : players.startsWith("@") ? Files.readAllLines(Paths.get(players.substring(1))) : Arrays.asList(players.split(",")))
+                if (!player.trim().isEmpty() && !player.trim().startsWith("#")) playerList.add(player.trim());
         } catch (IOException e) {
-            LOG.error("Could not get data of the given player.");
+            LOG.error("Could not read players to mimic from " + players.substring(1) + ".", e);
+            return null;
+        }
+
+        if (index < 0 || index >= playerList.size()) {
+            LOG.error("The mimicIndex argument must be between 0 and " + (playerList.size() - 1) + ".");
+            return null;
+        }
+
+        AuthenticationProfile profile;
+        try {
+            profile = MimicResolver.resolve(proxy, playerList).get(index);
+        } catch (IOException e) {
+            LOG.error("Could not resolve players to mimic.", e);
             return null;
         }
 
-        LOG.info("Mimicking player " + data.get("name"));
-        return new AuthenticationProfile((String) data.get("name"), id, null, null, new Gson().toJson(data.get("properties")));
+        if (profile != null) {
+            LOG.info("Mimicking player " + profile.getUsername());
+            Textures.prefetch(proxy, profile.getProperties());
+        }
+        return profile;
+    }
+
+    /**
+     * Performs a GET request using the shared transport and waits for the response.
+     * Fails right away if the services turn out to be unreachable while waiting (see {@link Connectivity}).
+     * @param proxy The proxy to make the request with
+     * @param url The URL to request
+     * @return The response, has either status code 200 or 204 (no content)
+     * @throws IOException If the request failed or the server responded with an error
+     */
+    private static HttpTransport.Response get(Proxy proxy, String url) throws IOException {
+        Connectivity.check(proxy);
+        HttpTransport transport = Http.getTransport(proxy);
+        HttpTransport.Response resp;
+        try {
+            // Retried and rate limited like the MSA requests. Gives up by itself once the step is out of time.
+            Timings.Step step = Timings.current();
+            resp = Resilience.execute(transport, HttpTransport.Request.get(url), step, true).get(Resilience.getTimeout(step) + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new IOException("Request to " + url + " failed", e);
+        }
+
+        if (resp.getStatusCode() >= 300) throw new IOException("Request to " + url + " failed with status code " + resp.getStatusCode());
+        return resp;
     }
 }
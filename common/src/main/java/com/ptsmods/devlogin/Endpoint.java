@@ -0,0 +1,48 @@
+package com.ptsmods.devlogin;
+
+/**
+ * The services DevLogin makes requests to.
+ * The URL of each can be overridden with the {@code devlogin.endpoint.<name>} system property, e.g. {@code devlogin.endpoint.xsts},
+ * or all of them at once with the {@code devlogin.authServer} system property, to point DevLogin at a local stand-in server.
+ * The properties are read on every request, so they can be changed at any time.
+ */
+public enum Endpoint {
+    MICROSOFT("microsoft", "https://login.microsoftonline.com"),
+    XBL("xbl", "https://user.auth.xboxlive.com"),
+    XSTS("xsts", "https://xsts.auth.xboxlive.com"),
+    MINECRAFT_SERVICES("minecraftServices", "https://api.minecraftservices.com"),
+    MOJANG_API("mojangApi", "https://api.mojang.com"),
+    SESSION_SERVER("sessionServer", "https://sessionserver.mojang.com");
+
+    private final String property, defaultUrl;
+
+    Endpoint(String property, String defaultUrl) {
+        this.property = property;
+        this.defaultUrl = defaultUrl;
+    }
+
+    /**
+     * @return The name of this service as used in system properties, e.g. mojangApi
+     */
+    public String getName() {
+        return property;
+    }
+
+    /**
+     * @return The base URL of this service without a trailing slash, e.g. https://api.mojang.com
+     */
+    public String getUrl() {
+        String url = System.getProperty("devlogin.endpoint." + property);
+        if (url == null) url = System.getProperty("devlogin.authServer", defaultUrl);
+
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * @param path The path to resolve, starting with a slash.
+     * @return The URL of the given path on this service.
+     */
+    public String resolve(String path) {
+        return getUrl() + path;
+    }
+}
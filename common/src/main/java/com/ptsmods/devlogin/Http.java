@@ -0,0 +1,68 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Proxy;
+
+/**
+ * Holds the HTTP transport shared by everything in DevLogin that makes requests.
+ * Connections are kept alive and pooled, so consecutive requests to the same host
+ * don't have to do DNS lookups and TCP and TLS handshakes again.
+ * <p>
+ * The transport is chosen with the {@code devlogin.http} system property: {@code jdk}, the default, uses the JDK's own
+ * {@link java.net.HttpURLConnection} and {@code ahc} uses async-http-client (see {@link HttpTransport}).
+ */
+public class Http {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-Http");
+    private static HttpTransport transport;
+    private static Proxy transportProxy;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(Http::close, "DevLogin-HttpShutdown"));
+    }
+
+    /**
+     * Gets the shared transport, creating it if necessary.
+     * @param proxy The proxy to route requests through.
+     * @return A transport routing requests through the given proxy.
+     */
+    public static synchronized HttpTransport getTransport(Proxy proxy) {
+        if (transport == null || !proxy.equals(transportProxy)) {
+            close();
+            transport = createTransport(proxy);
+            transportProxy = proxy;
+        }
+
+        return transport;
+    }
+
+    /**
+     * Closes the shared transport, if it exists.
+     * A new one will be created the next time {@link #getTransport(Proxy)} is called.
+     */
+    public static synchronized void close() {
+        if (transport == null) return;
+
+        try {
+            transport.close();
+        } catch (IOException e) {
+            LOG.error("Could not close HTTP transport.", e);
+        }
+        transport = null;
+    }
+
+    private static HttpTransport createTransport(Proxy proxy) {
+        String name = System.getProperty("devlogin.http", "jdk");
+        switch (name) {
+            case "ahc":
+                return new AhcHttpTransport(proxy);
+            case "jdk":
+                return new JdkHttpTransport(proxy);
+            default:
+                LOG.warn("Unknown HTTP transport " + name + ", using jdk.");
+                return new JdkHttpTransport(proxy);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.ptsmods.devlogin;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the HTTP requests DevLogin makes. Everything that makes requests goes through the transport returned by
+ * {@link Http#getTransport(java.net.Proxy)}, which uses the JDK's own {@link java.net.HttpURLConnection} by default,
+ * so launching doesn't have to load and start a whole networking framework for a handful of requests.
+ * Setting the {@code devlogin.http} system property to {@code ahc} uses async-http-client instead.
+ */
+public interface HttpTransport extends Closeable {
+    /**
+     * Sends a request without waiting for the response.
+     * @param request The request to send
+     * @param timeout The time in milliseconds the request may take at most.
+     * @param listener Told about the progress of the request, for timing it.
+     * @return A future that completes with the response, whatever its status, or exceptionally if no response was received.
+     */
+    CompletableFuture<Response> send(Request request, int timeout, Listener listener);
+
+    /**
+     * A request to send. Never changed once made.
+     */
+    final class Request {
+        private final String method, url, body;
+        private final Map<String, String> headers;
+
+        /**
+         * @param method The method of the request. E.g. GET or POST.
+         * @param url The URL to send the request to.
+         * @param body The body of the request, sent as UTF-8, or {@code null} if it has none.
+         * @param headers The headers of the request. E.g. Content-Type or Authorization.
+         */
+        public Request(String method, String url, String body, Map<String, String> headers) {
+            this.method = method;
+            this.url = url;
+            this.body = body;
+            this.headers = headers == null ? Collections.emptyMap() : Collections.unmodifiableMap(headers);
+        }
+
+        /**
+         * @return A GET request to the given URL without any headers.
+         */
+        public static Request get(String url) {
+            return new Request("GET", url, null, null);
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+    }
+
+    /**
+     * A response that has been received in its entirety.
+     */
+    interface Response {
+        int getStatusCode();
+
+        /**
+         * @param name The name of the header, in any case.
+         * @return The value of the header or {@code null} if the response does not have it.
+         */
+        String getHeader(String name);
+
+        byte[] getBodyAsBytes();
+
+        default InputStream getBodyAsStream() {
+            return new ByteArrayInputStream(getBodyAsBytes());
+        }
+
+        default String getBody() {
+            return new String(getBodyAsBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Told about the progress of a request. Transports only report what they know,
+     * the JDK's transport e.g. doesn't know when connections are made, so it never reports that.
+     */
+    interface Listener {
+        Listener NONE = new Listener() {};
+
+        /**
+         * @param nanos The time the hostname took to resolve.
+         */
+        default void onHostnameResolved(long nanos) {}
+
+        /**
+         * @param nanos The time the TCP connection took to make.
+         */
+        default void onConnected(long nanos) {}
+
+        /**
+         * @param nanos The time the TLS handshake took.
+         */
+        default void onTlsHandshake(long nanos) {}
+
+        /**
+         * Called when the transport itself retries a request, e.g. because a pooled connection turned out to be closed.
+         */
+        default void onRetry() {}
+
+        /**
+         * Called once the status of the response has been received, before the rest of it.
+         */
+        default void onStatus(int status) {}
+    }
+}
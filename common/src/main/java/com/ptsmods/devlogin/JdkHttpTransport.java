@@ -0,0 +1,129 @@
+package com.ptsmods.devlogin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests with the JDK's {@link HttpURLConnection}, which is always loaded anyway and keeps connections alive by itself.
+ * It blocks while sending, so every request is sent on a thread of its own, of which there are only ever a couple.
+ * <p>
+ * Proxies requiring credentials work with the credentials passed with {@code --proxyUser} and {@code --proxyPass},
+ * but the JDK doesn't use basic authentication for HTTPS through a proxy, unless the {@code jdk.http.auth.tunneling.disabledSchemes}
+ * system property is set to an empty string.
+ */
+class JdkHttpTransport implements HttpTransport {
+    private static final int CONNECT_TIMEOUT = 5000;
+    private final Proxy proxy;
+    private final ExecutorService executor;
+
+    JdkHttpTransport(Proxy proxy) {
+        this.proxy = proxy;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "DevLogin-Http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true); // Must never keep the game from exiting.
+            return thread;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Response> send(Request request, int timeout, Listener listener) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(sendNow(request, timeout, listener));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("The transport has been closed.", e));
+        }
+
+        return future;
+    }
+
+    private Response sendNow(Request request, int timeout, Listener listener) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection(proxy);
+        connection.setRequestMethod(request.getMethod());
+        connection.setConnectTimeout(Math.min(CONNECT_TIMEOUT, timeout));
+        connection.setReadTimeout(timeout);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        request.getHeaders().forEach(connection::setRequestProperty);
+
+        if (request.getBody() != null) {
+            byte[] body = request.getBody().getBytes(StandardCharsets.UTF_8);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        listener.onStatus(status);
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet())
+            if (header.getKey() != null && !header.getValue().isEmpty()) headers.put(header.getKey(), header.getValue().get(0));
+
+        // The body must be read entirely and closed for the connection to be reused.
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        return new JdkResponse(status, headers, in == null ? new byte[0] : readAll(in));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = input.read(buffer)) != -1; ) out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static class JdkResponse implements Response {
+        private final int status;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        private JdkResponse(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return status;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public byte[] getBodyAsBytes() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.ptsmods.devlogin;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Holds the Gson instances shared by everything in DevLogin that reads or writes JSON.
+ * Gson creates an adapter for every type the first time it sees it, which involves quite a bit of reflection,
+ * so sharing one instance means that only happens once. The responses of the endpoints DevLogin uses
+ * have adapters written by hand registered with it, so those don't need any reflection at all.
+ */
+public class Json {
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Responses.DeviceCode.class, Responses.DeviceCode.ADAPTER)
+            .registerTypeAdapter(Responses.OAuthTokens.class, Responses.OAuthTokens.ADAPTER)
+            .registerTypeAdapter(Responses.XboxToken.class, Responses.XboxToken.ADAPTER)
+            .registerTypeAdapter(Responses.MinecraftToken.class, Responses.MinecraftToken.ADAPTER)
+            .registerTypeAdapter(Responses.Profile.class, Responses.Profile.ADAPTER)
+            .registerTypeAdapter(Responses.SessionProfile.class, Responses.SessionProfile.ADAPTER)
+            .registerTypeAdapter(Responses.Property.class, Responses.Property.ADAPTER)
+            .registerTypeAdapter(Responses.Textures.class, Responses.Textures.ADAPTER)
+            .registerTypeAdapter(Responses.JwtPayload.class, Responses.JwtPayload.ADAPTER)
+            .create();
+
+    /**
+     * Same as {@link #GSON}, with the same adapters registered, but writes JSON meant to be read by people, like the files DevLogin stores.
+     */
+    public static final Gson PRETTY_GSON = GSON.newBuilder().setPrettyPrinting().create();
+
+    /**
+     * Decodes the body of a response straight from its bytes, without turning it into a String first.
+     * @param resp The response to decode
+     * @param type The type to decode it as
+     * @return The decoded body or {@code null} if it was empty.
+     * @throws JsonParseException If the body is not valid JSON or does not match the given type.
+     */
+    public static <T> T read(HttpTransport.Response resp, Type type) {
+        return read(resp.getBodyAsStream(), type);
+    }
+
+    /**
+     * Decodes JSON straight from a stream. The stream is not closed.
+     * @param in The stream to decode
+     * @param type The type to decode it as
+     * @return The decoded value or {@code null} if the stream was empty.
+     * @throws JsonParseException If the stream does not contain valid JSON or it does not match the given type.
+     */
+    public static <T> T read(InputStream in, Type type) {
+        // JsonReader buffers by itself, no need for a BufferedReader.
+        return GSON.fromJson(new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8)), type);
+    }
+
+    /**
+     * An adapter for a response object that reads the fields it knows and skips the rest.
+     * @param <T> The type of the response
+     */
+    abstract static class ResponseAdapter<T> extends TypeAdapter<T> {
+        private static final Gson REFLECTIVE_GSON = new Gson(); // Has none of the adapters registered, so it writes responses reflectively.
+
+        /**
+         * @return A new, empty response to read into.
+         */
+        abstract T create();
+
+        /**
+         * Reads the value of a field into the response. Null values are skipped before this is called.
+         * @param value The response to read into
+         * @param name The name of the field
+         * @param reader The reader, positioned at the value of the field.
+         * @return Whether the value was read. If not, it is skipped.
+         */
+        abstract boolean readField(T value, String name, JsonReader reader) throws IOException;
+
+        @Override
+        public T read(JsonReader reader) throws IOException {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                return null;
+            }
+
+            T value = create();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL || !readField(value, name, reader)) reader.skipValue();
+            }
+            reader.endObject();
+            return value;
+        }
+
+        /**
+         * Writes the response field by field, the way Gson would without this adapter. DevLogin never writes responses itself,
+         * but as this adapter is registered with {@link #GSON}, anything that does, e.g. to log one, should still work.
+         */
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            if (value == null) out.nullValue();
+            else REFLECTIVE_GSON.toJson(value, value.getClass(), out);
+        }
+    }
+}
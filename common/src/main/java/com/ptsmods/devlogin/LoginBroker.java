@@ -0,0 +1,254 @@
+package com.ptsmods.devlogin;
+
+import com.google.gson.JsonObject;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived process that owns the tokens of one or more accounts and hands them out to clients
+ * started with {@code --msa-broker}, so a farm of clients doesn't have to log in themselves.
+ * Tokens of accounts logged in with through MSA are kept fresh by the {@link TokenRefresher}.
+ * It only listens on the loopback address and only answers clients that know the secret it
+ * stores in the DevLogin directory, which only the user running it can read. Clients in turn only trust a broker
+ * that proves it knows the secret too, and the secret itself is never sent, so a process that took over the port
+ * can neither learn it nor hand out profiles of its own.
+ * <p>
+ * Clients wait for the broker for the time set with the {@code devlogin.brokerTimeout} system property in milliseconds,
+ * 60000 by default, as the broker may have to log in first, after which they log in themselves.
+ * <p>
+ * Start it with the same classpath as the game, e.g. {@code java -cp <classpath> com.ptsmods.devlogin.LoginBroker [--port <port>] [--msa-no-dialog]}.
+ */
+public class LoginBroker implements Closeable {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-Broker");
+    private static final SharedJsonFile<Info> infoFile = new SharedJsonFile<>(DevLogin.getDirectory().resolve("broker.json"), Info.class, Info::new);
+    private static final long EXPIRY_MARGIN = TimeUnit.MINUTES.toMillis(5);
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    private static final SecureRandom random = new SecureRandom();
+    private final ProfileSource source;
+    private final Map<String, AuthenticationProfile> profiles = new ConcurrentHashMap<>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> new Thread(r, "DevLogin-Broker-Worker"));
+    private final String secret;
+    private ServerSocket serverSocket;
+
+    /**
+     * @param source Where the broker gets its profiles from, e.g. by logging in with a Microsoft account.
+     */
+    public LoginBroker(ProfileSource source) {
+        this.source = source;
+
+        this.secret = randomString(32);
+    }
+
+    public static void main(String[] args) throws IOException {
+        OptionParser parser = new OptionParser();
+        parser.accepts("port").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        parser.accepts("msa-no-dialog");
+        OptionSet options = parser.parse(args);
+
+        boolean noDialog = options.has("msa-no-dialog");
+        LoginBroker broker = new LoginBroker(account -> DevLogin.loginMSA(Proxy.NO_PROXY, true, noDialog, account));
+        broker.start((Integer) options.valueOf("port"));
+    }
+
+    /**
+     * Starts listening for clients on a separate thread and publishes the port and secret, so clients can find this broker.
+     * @param port The port to listen on or {@code 0} to use any free port.
+     * @return The port this broker is listening on.
+     * @throws IOException If the port could not be bound or the port and secret could not be published.
+     */
+    public int start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        int boundPort = serverSocket.getLocalPort();
+        infoFile.update(info -> {
+            info.port = boundPort;
+            info.secret = secret;
+            return info;
+        });
+
+        Thread thread = new Thread(this::acceptLoop, "DevLogin-Broker");
+        thread.start();
+        LOG.info("Login broker listening on port " + boundPort + ".");
+        return boundPort;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (serverSocket != null) serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed())
+            try {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> handle(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) LOG.error("Could not accept client.", e);
+            }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+            s.setSoTimeout(HANDSHAKE_TIMEOUT);
+            s.setTcpNoDelay(true);
+
+            // The client sends a nonce, which we prove we know the secret with, along with a nonce of our own.
+            String clientNonce = reader.readLine();
+            if (clientNonce == null) return;
+
+            String nonce = randomString(16);
+            writer.write(nonce + " " + sign(secret, "broker", clientNonce) + "\n");
+            writer.flush();
+
+            // Then the client proves it knows the secret the same way, followed by the account to get or nothing for the default account.
+            String request = reader.readLine();
+            if (request == null) return;
+
+            String[] parts = request.split(" ", 2);
+            if (!verify(parts[0], sign(secret, "client", nonce))) {
+                LOG.warn("Rejected client that does not know the secret.");
+                return;
+            }
+
+            AuthenticationProfile profile = getProfile(parts.length > 1 ? parts[1] : "");
+            writer.write((profile == null ? "null" : Json.GSON.toJson(profile)) + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            LOG.error("Could not handle client.", e);
+        }
+    }
+
+    /**
+     * Gets the profile of an account, logging in if it's not known yet or its token is about to expire.
+     * @param account The name or UUID of the account or an empty string for the account that was used last.
+     * @return The profile of the account or {@code null} if logging in failed.
+     */
+    private AuthenticationProfile getProfile(String account) {
+        AuthenticationProfile profile = getLatest(account);
+        if (profile != null && MSA.getTokenExpiry(profile.getAccessToken()) - EXPIRY_MARGIN > System.currentTimeMillis()) return profile;
+
+        // Only log in to an account once at a time, there's no use in multiple clients causing the same login.
+        // Different accounts are logged in to at the same time.
+        synchronized (locks.computeIfAbsent(account, k -> new Object())) {
+            profile = getLatest(account);
+            if (profile != null && MSA.getTokenExpiry(profile.getAccessToken()) - EXPIRY_MARGIN > System.currentTimeMillis()) return profile;
+
+            profile = source.get(account.isEmpty() ? null : account);
+            if (profile != null) profiles.put(account, profile);
+            return profile;
+        }
+    }
+
+    /**
+     * @return The latest known profile of the given account, which may have been refreshed by the {@link TokenRefresher}.
+     */
+    private AuthenticationProfile getLatest(String account) {
+        AuthenticationProfile profile = profiles.get(account);
+        AuthenticationProfile refreshed = profile == null ? null : TokenRefresher.getCurrent(profile.getId());
+        return refreshed == null ? profile : refreshed;
+    }
+
+    /**
+     * Requests a profile from a running broker.
+     * @param account The name or UUID of the account or {@code null} for the account that was used last.
+     * @return The profile the broker returned or {@code null} if no broker is running or it could not log in.
+     */
+    public static AuthenticationProfile request(String account) {
+        Info info = infoFile.read();
+        if (info.secret == null) return null;
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), info.port), 500);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String nonce = randomString(16);
+            writer.write(nonce + "\n");
+            writer.flush();
+
+            // Whatever is listening on the port has to prove it's the broker before we prove we're allowed to use it.
+            String challenge = reader.readLine();
+            String[] parts = challenge == null ? new String[0] : challenge.split(" ", 2);
+            if (parts.length < 2 || !verify(parts[1], sign(info.secret, "broker", nonce))) {
+                LOG.warn("The process listening on port " + info.port + " is not the login broker, logging in without it.");
+                return null;
+            }
+
+            writer.write(sign(info.secret, "client", parts[0]) + " " + (account == null ? "" : account) + "\n");
+            writer.flush();
+
+            // The broker might have to log in first, which could require the user to do something.
+            socket.setSoTimeout(Integer.getInteger("devlogin.brokerTimeout", 60000));
+            String response = reader.readLine();
+            return response == null ? null : Json.GSON.fromJson(response, AuthenticationProfile.class);
+        } catch (IOException e) {
+            LOG.info("Could not reach login broker (" + e.getMessage() + ").");
+            return null;
+        }
+    }
+
+    private static String randomString(int bytes) {
+        byte[] b = new byte[bytes];
+        random.nextBytes(b);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+    }
+
+    /**
+     * @param secret The secret of the broker
+     * @param role Who is proving they know the secret, so a proof can't be sent back to whoever it came from.
+     * @param nonce The nonce the other side sent
+     * @return Proof that the sender knows the secret, which can't be used to find out the secret.
+     */
+    private static String sign(String secret, String role, String nonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal((role + " " + nonce).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not supported.", e); // Every JVM is required to support it.
+        }
+    }
+
+    private static boolean verify(String proof, String expected) {
+        return MessageDigest.isEqual(proof.getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Supplies the broker with profiles.
+     */
+    @FunctionalInterface
+    public interface ProfileSource {
+        /**
+         * @param account The name or UUID of the account or {@code null} for the account that was used last.
+         * @return The profile of the account or {@code null} if it could not be acquired.
+         */
+        AuthenticationProfile get(String account);
+    }
+
+    private static class Info {
+        private int port;
+        private String secret;
+    }
+}
@@ -0,0 +1,51 @@
+package com.ptsmods.devlogin;
+
+/**
+ * Shows messages to the user while logging in, like the code to authenticate with or what went wrong.
+ * Only obtained once there is something to show, so launches that don't need the user, like ones with a cached token,
+ * never load any of the implementations. In particular, AWT and Swing are only ever loaded by the dialog implementation.
+ * <p>
+ * Which implementation is used is decided by the {@code devlogin.ui} system property:
+ * <ul>
+ *     <li>{@code dialog}: Swing dialogs, the default.</li>
+ *     <li>{@code browser}: a page in the user's browser, served from the loopback address.</li>
+ *     <li>{@code console}: the log, which is always used if {@code --msa-no-dialog} is passed.</li>
+ * </ul>
+ */
+public interface LoginUi {
+    /**
+     * Shows a message.
+     * @param title The title of the message.
+     * @param message The message, may contain basic HTML like links, {@code <b>} and {@code <br>}.
+     *                Anything in it that does not come from DevLogin itself must be escaped with {@link LoopbackServer#escape(String)}.
+     * @param onClose The runnable called when the user closes the message or {@code null}.
+     * @return A handle to close the message with once it no longer applies.
+     */
+    Handle show(String title, String message, Runnable onClose);
+
+    /**
+     * @param noDialog Whether messages should only be logged.
+     * @return The login UI the user asked for.
+     */
+    static LoginUi get(boolean noDialog) {
+        switch (noDialog ? "console" : System.getProperty("devlogin.ui", "dialog")) {
+            case "console":
+                return ConsoleLoginUi.INSTANCE;
+            case "browser":
+                return PageLoginUi.get();
+            default:
+                return SwingLoginUi.INSTANCE;
+        }
+    }
+
+    /**
+     * A message that is being shown.
+     */
+    @FunctionalInterface
+    interface Handle {
+        /**
+         * Closes the message if it's still being shown.
+         */
+        void close();
+    }
+}
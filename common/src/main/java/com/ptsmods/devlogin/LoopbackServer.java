@@ -0,0 +1,181 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A tiny HTTP server that only listens on the loopback address, used to show pages in the user's browser.
+ * Every connection gets a single response and is then closed, which is all a browser needs.
+ * It runs on a daemon thread, so it never keeps the game from exiting, and only answers requests
+ * addressed to the loopback address, so other websites can't use the browser to read its pages.
+ */
+class LoopbackServer implements Closeable {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-Loopback");
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+
+    /**
+     * Starts listening on a separate thread.
+     * @param port The port to listen on or {@code 0} to use any free port.
+     * @param handler Handles every request this server receives.
+     * @throws IOException If the port could not be bound.
+     */
+    LoopbackServer(int port, Handler handler) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.handler = handler;
+
+        Thread thread = new Thread(this::acceptLoop, "DevLogin-Loopback");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The port this server is listening on.
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The base URL of this server, e.g. http://127.0.0.1:12345
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed())
+            try (Socket socket = serverSocket.accept()) {
+                handle(socket); // Requests are few and answered right away, no need for more threads.
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) LOG.error("Could not handle request.", e);
+            }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        socket.setSoTimeout(5000);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String requestLine = reader.readLine();
+        if (requestLine == null) return;
+
+        String host = null;
+        for (String header; (header = reader.readLine()) != null && !header.isEmpty(); )
+            if (header.regionMatches(true, 0, "Host:", 0, 5)) host = header.substring(5).trim();
+
+        String[] parts = requestLine.split(" ");
+        Response resp;
+        if (parts.length != 3) resp = Response.text(400, "Bad Request");
+        else if (!("127.0.0.1:" + getPort()).equals(host) && !("localhost:" + getPort()).equals(host)) resp = Response.text(403, "Forbidden");
+        else
+            try {
+                resp = handler.handle(parts[0], new URI(parts[1]));
+            } catch (URISyntaxException e) {
+                resp = Response.text(400, "Bad Request");
+            }
+        if (resp == null) resp = Response.text(404, "Not Found");
+
+        byte[] body = resp.body.getBytes(StandardCharsets.UTF_8);
+        OutputStream out = socket.getOutputStream();
+        out.write(String.format("HTTP/1.1 %d %s\r\nContent-Type: %s; charset=utf-8\r\nContent-Length: %d\r\nCache-Control: no-store\r\nConnection: close\r\n%s\r\n",
+                resp.status, resp.reason(), resp.contentType, body.length, resp.location == null ? "" : "Location: " + resp.location + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * @param rawQuery The raw query of a URI, may be {@code null}.
+     * @return The decoded parameters in the given query.
+     */
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) return params;
+
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            try {
+                if (eq == -1) params.put(URLDecoder.decode(pair, "UTF-8"), "");
+                else params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                // Impossible for UTF-8, malformed pairs are skipped.
+            }
+        }
+        return params;
+    }
+
+    /**
+     * @param s The text to escape
+     * @return The given text with all characters that have a meaning in HTML escaped.
+     */
+    static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&#39;");
+    }
+
+    /**
+     * Handles the requests of a {@link LoopbackServer}.
+     */
+    @FunctionalInterface
+    interface Handler {
+        /**
+         * Called on the thread of the server, so should return quickly.
+         * @param method The method of the request, e.g. GET.
+         * @param uri The path and query of the request.
+         * @return The response to send or {@code null} to send a 404.
+         */
+        Response handle(String method, URI uri);
+    }
+
+    /**
+     * A response to a request made to a {@link LoopbackServer}.
+     */
+    static class Response {
+        private final int status;
+        private final String contentType, body, location;
+
+        private Response(int status, String contentType, String body, String location) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+            this.location = location;
+        }
+
+        static Response html(String body) {
+            return new Response(200, "text/html", body, null);
+        }
+
+        static Response text(int status, String body) {
+            return new Response(status, "text/plain", body, null);
+        }
+
+        static Response redirect(String location) {
+            return new Response(303, "text/plain", "", location);
+        }
+
+        private String reason() {
+            switch (status) {
+                case 200:
+                    return "OK";
+                case 303:
+                    return "See Other";
+                case 400:
+                    return "Bad Request";
+                case 403:
+                    return "Forbidden";
+                case 405:
+                    return "Method Not Allowed";
+                default:
+                    return "Not Found";
+            }
+        }
+    }
+}
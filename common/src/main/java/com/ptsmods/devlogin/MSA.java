@@ -1,299 +1,566 @@
 package com.ptsmods.devlogin;
 
-import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.reflect.TypeToken;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import it.unimi.dsi.fastutil.booleans.BooleanConsumer;
-import net.minecraft.client.Minecraft;
+import com.google.gson.JsonParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.asynchttpclient.*;
-import org.asynchttpclient.proxy.ProxyServer;
-import org.asynchttpclient.proxy.ProxyType;
-
-import javax.swing.*;
-import javax.swing.event.HyperlinkEvent;
-import java.awt.*;
-import java.awt.event.WindowAdapter;
-import java.awt.event.WindowEvent;
+
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.BiConsumer;
-import java.util.function.Consumer;
-import java.util.regex.Pattern;
-
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Takes all the necessary steps to get a Minecraft token from a Microsoft account.
+ * <p>
+ * Every login is a pipeline of futures, each step taking the {@link Tokens} acquired so far and completing with the next ones,
+ * so no thread is kept waiting on a request and any number of logins, e.g. of different accounts, can run at the same time.
+ * The tokens of a login are immutable and only known to that login. Everything in between requests, like decoding responses
+ * and storing tokens, runs on the executor, which by default uses virtual threads on JVMs that have them.
+ */
 // Thanks to https://wiki.vg/Microsoft_Authentication_Scheme, Microsoft Docs and
 // https://github.com/MultiMC/Launcher/blob/develop/launcher/minecraft/auth/flows/AuthContext.cpp for this
 public class MSA {
     private static final Logger LOG = LogManager.getLogger("DevLogin-MSA");
-    private static AsyncHttpClient client;
-    private static final Pattern urlPattern = Pattern.compile("<a href=\"(.*?)\">.*?</a>"), tagPattern = Pattern.compile("<([A-Za-z]*?).*?>(.*?)</\\1>");
-    private static final File tokenFile = new File("DevLoginCache.json");
     private static final String CLIENT_ID = "f8f49268-ae66-4638-9ba7-ab89e8e09de0"; // DevLogin Azure application client id
-    private static boolean noDialog = false;
-    private static JFrame mainDialog;
-    private static String deviceCode; // Strings sorted by steps they're acquired in.
-    private static String accessToken, refreshToken;
-    private static String xblToken, userHash;
-    private static String xstsToken;
-    private static String mcToken;
-    private static MinecraftProfile profile;
-    private static boolean isCancelled = false;
-
-    /**
-     * Takes all the necessary steps to get a Minecraft token from a Microsoft account.
+    private static final String SCOPE = "XboxLive.signin offline_access";
+    private static final long EXPIRY_MARGIN = TimeUnit.MINUTES.toMillis(5); // Cached tokens expiring within this time are no longer trusted.
+    private static Executor defaultExecutor;
+    private final Proxy proxy;
+    private final boolean storeRefreshToken, noDialog, interactive;
+    private final Executor executor;
+    private volatile boolean cancelled;
+    private volatile Runnable cancelAuthentication;
+
+    /**
+     * Same as {@link #MSA(Proxy, boolean, boolean, boolean, Executor)}, using the {@link #getDefaultExecutor() default executor}.
+     */
+    public MSA(Proxy proxy, boolean storeRefreshToken, boolean noDialog, boolean interactive) {
+        this(proxy, storeRefreshToken, noDialog, interactive, getDefaultExecutor());
+    }
+
+    /**
      * @param proxy The proxy to route requests through.
      * @param storeRefreshToken Whether the refresh token should be stored for later use.
      * @param noDialog Whether to print the code to the console or show a dialog
-     * @throws IOException If anything goes wrong with the requests.
-     * @throws InterruptedException If the thread gets interrupted while waiting.
+     * @param interactive Whether the user may be asked to authenticate if the stored tokens can't be used.
+     * @param executor The executor to handle responses and store tokens on.
      */
-    public static void login(Proxy proxy, boolean storeRefreshToken, boolean noDialog) throws IOException, InterruptedException {
-        try {
-            if (!noDialog) System.setProperty("java.awt.headless", "false"); // Can't display dialogs otherwise.
-
-            DefaultAsyncHttpClientConfig.Builder clientConfig = new DefaultAsyncHttpClientConfig.Builder()
-                    .setRequestTimeout(10000)
-                    .setReadTimeout(10000);
-
-            // Turn Proxy into a ProxyServer.
-            if (proxy.type() != Proxy.Type.DIRECT) {
-                InetSocketAddress aproxy = (InetSocketAddress) proxy.address();
-                ProxyType tproxy = proxy.type() == Proxy.Type.SOCKS ? ProxyType.SOCKS_V5 : ProxyType.HTTP;
-                clientConfig.setProxyServer(new ProxyServer.Builder(aproxy.getHostName(), aproxy.getPort())
-                        .setProxyType(tproxy)
-                        .build());
+    public MSA(Proxy proxy, boolean storeRefreshToken, boolean noDialog, boolean interactive, Executor executor) {
+        this.proxy = proxy;
+        this.storeRefreshToken = storeRefreshToken;
+        this.noDialog = noDialog;
+        this.interactive = interactive;
+        this.executor = executor;
+    }
+
+    /**
+     * @return The executor logins use unless told otherwise: a virtual thread per task on Java 21 and up, unless the
+     * {@code devlogin.virtualThreads} system property is set to {@code false}, or a pool of daemon threads otherwise.
+     */
+    public static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor != null) return defaultExecutor;
+
+        if (!"false".equals(System.getProperty("devlogin.virtualThreads")))
+            try {
+                // Looked up reflectively, as we're built for Java 8.
+                defaultExecutor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.debug("Virtual threads are not available, using platform threads.");
             }
 
-            client = new DefaultAsyncHttpClient();
+        if (defaultExecutor == null) {
+            AtomicInteger count = new AtomicInteger();
+            defaultExecutor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "DevLogin-MSA-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
 
-            MSA.noDialog = noDialog;
+        return defaultExecutor;
+    }
 
-            if (tokenFile.exists()) {
-                Map<String, String> data = MoreObjects.firstNonNull(readData(), Collections.emptyMap());
-                refreshToken = data.get("refreshToken");
-                mcToken = data.get("mcToken");
+    /**
+     * Cancels the login, so the user is no longer asked to authenticate: the dialog asking them to is closed, if shown, and
+     * no longer waited on. Requests that have already been sent are left to finish, but the login then completes without a profile,
+     * unless the user already authenticated.
+     */
+    public void cancel() {
+        cancelled = true;
+        Runnable cancel = cancelAuthentication;
+        if (cancel != null) cancel.run();
+    }
 
-                if (reqProfile()) {
-                    LOG.info("Cached token is valid.");
-                    return;
+    /**
+     * Logs in, using the stored tokens if they're still valid and asking the user to authenticate if none of them can be used.
+     * The cached token is checked right away, so if it's still valid, the returned future is already complete.
+     * @param account The name or UUID of the stored account to login with or {@code null} to use the account that was used last.
+     * @return A future that completes with the profile or with {@code null} if logging in failed, which has been reported to the user already.
+     */
+    public CompletableFuture<MinecraftProfile> login(String account) {
+        Map<String, String> data;
+        long expiry = 0;
+        try (Timings.Step step = Timings.step("cachedToken")) {
+            data = TokenStore.get(account);
+            if (data != null) {
+                // The token tells us itself until when it's valid, so there's no need to ask.
+                expiry = getTokenExpiry(data.get("mcToken"));
+                if (expiry - EXPIRY_MARGIN > System.currentTimeMillis() && data.get("profileName") != null && data.get("profileId") != null) {
+                    LOG.info("Cached token is valid until " + new Date(expiry) + ".");
+                    step.succeed();
+                    return CompletableFuture.completedFuture(new MinecraftProfile(data.get("profileName"), UndashedUuid.fromString(data.get("profileId")), data.get("mcToken")));
                 }
+            }
+
+            step.result(data == null ? "missing" : "expired");
+        }
+
+        if (data == null) return reqTokens(Tokens.EMPTY).thenCompose(this::reqMinecraftTokenChain).thenApply(tokens -> tokens.profile);
+
+        Tokens stored = Tokens.EMPTY.withRefreshToken(data.get("refreshToken")).withMcToken(data.get("mcToken"));
+        // If any of the tokens the Minecraft token is made from are still valid, there's no need to refresh.
+        Tokens chain = loadChainTokens(data, stored);
+        boolean resumable = chain != stored;
+
+        // Otherwise, the refresh is only needed if the cached token turns out to be invalid, but checking that takes
+        // about as long as the refresh itself, so both are done at the same time.
+        CompletableFuture<Responses.OAuthTokens> refresh = stored.refreshToken == null || resumable ? null : startRefresh(data);
+
+        // No need to ask if the token tells us itself that it has expired.
+        CompletableFuture<MinecraftProfile> check = expiry == 0 || expiry > System.currentTimeMillis() ? reqProfile(stored.mcToken) : CompletableFuture.completedFuture(null);
+        return fallBackWhenOffline(data, check.thenComposeAsync(profile -> {
+            if (profile != null) {
+                LOG.info("Cached token is valid.");
+                // Caches made by older versions don't contain the profile yet.
+                if (data.get("profileId") == null) saveData(stored.withProfile(profile), stored.refreshToken != null);
+                if (refresh != null) discardRefresh(refresh, profile);
+                return CompletableFuture.completedFuture(stored.withProfile(profile));
+            }
+
+            return (resumable ? resumeChain(chain) : CompletableFuture.<Tokens>completedFuture(null)).thenCompose(resumed -> {
+                if (resumed != null) return CompletableFuture.completedFuture(resumed);
 
-                if (refreshToken != null) {
-                    LOG.info("Cached token is invalid, requesting new one using refresh token.");
-                    refreshToken(b -> {
-                        if (!b)
-                            try {
-                                reqTokens();
-                            } catch (IOException ignored) {}
-                    });
-                } else {
+                CompletableFuture<Responses.OAuthTokens> newRefresh = refresh != null ? refresh : resumable && stored.refreshToken != null ? startRefresh(data) : null;
+                if (newRefresh == null) {
                     LOG.info("Cached token is invalid.");
-                    reqTokens();
+                    return reqTokens(stored).thenCompose(this::reqMinecraftTokenChain);
                 }
-            } else reqTokens();
 
+                LOG.info("Cached token is invalid, requesting new one using refresh token.");
+                return awaitRefresh(newRefresh, stored)
+                        .thenCompose(refreshed -> refreshed == null ? reqTokens(stored) : CompletableFuture.completedFuture(refreshed))
+                        .thenCompose(this::reqMinecraftTokenChain);
+            });
+        }, executor).thenApply(tokens -> tokens.profile != null ? tokens.profile : useCachedProfile(data)));
+    }
 
-            if (accessToken == null) return;
+    /**
+     * Completes with the cached profile as soon as the services turn out to be unreachable (see {@link Connectivity}),
+     * rather than once every step of the login has failed because of that.
+     * @param data The stored data of the account
+     * @param login The future of the login itself, which is left to finish in the background if the cached profile is used.
+     * @return A future that completes with whichever profile is known first.
+     */
+    private CompletableFuture<MinecraftProfile> fallBackWhenOffline(Map<String, String> data, CompletableFuture<MinecraftProfile> login) {
+        CompletableFuture<MinecraftProfile> result = new CompletableFuture<>();
+        login.whenComplete((profile, t) -> {
+            if (t != null) result.completeExceptionally(t);
+            else result.complete(profile);
+        });
+        Connectivity.check(proxy).thenAccept(reachable -> {
+            MinecraftProfile cached = reachable || result.isDone() ? null : useCachedProfile(data);
+            if (cached != null) result.complete(cached);
+        });
 
-            reqXBLToken();
+        return result;
+    }
 
-            if (xblToken == null) return;
+    /**
+     * Gets a new Minecraft token for a stored account using its refresh token, regardless of whether its current token is still valid.
+     * Never asks the user to do anything, so it can safely be used in the background.
+     * @param account The name or UUID of the stored account to refresh.
+     * @return A future that completes with the refreshed profile or with {@code null} if the account has no refresh token or refreshing failed.
+     */
+    public CompletableFuture<MinecraftProfile> refresh(String account) {
+        Map<String, String> data = TokenStore.get(account);
+        if (data == null || data.get("refreshToken") == null) return CompletableFuture.completedFuture(null);
+
+        Tokens stored = Tokens.EMPTY.withRefreshToken(data.get("refreshToken"));
+        Tokens chain = loadChainTokens(data, stored);
+        return (chain != stored ? resumeChain(chain) : CompletableFuture.<Tokens>completedFuture(null)).thenCompose(resumed -> resumed != null ?
+                CompletableFuture.completedFuture(resumed) : awaitRefresh(startRefresh(data), stored)
+                        .thenCompose(refreshed -> refreshed == null ? CompletableFuture.completedFuture(stored) : reqMinecraftTokenChain(refreshed)))
+                .thenApply(tokens -> tokens.profile);
+    }
 
-            reqXSTSToken();
+    /**
+     * Falls back to the cached profile if logging in failed because the authentication services are down or can't be reached at all.
+     * Its token has likely expired, but that only matters when joining servers, which won't work while the services are down anyway.
+     * The token is refreshed in the background once they're back (see {@link TokenRefresher}).
+     * @param data The stored data of the account
+     * @return The cached profile or {@code null} if there is none or the services are not down.
+     */
+    private static MinecraftProfile useCachedProfile(Map<String, String> data) {
+        if (data.get("mcToken") == null || data.get("profileName") == null || data.get("profileId") == null) return null;
+        if (Stream.of(Endpoint.MICROSOFT, Endpoint.XBL, Endpoint.XSTS, Endpoint.MINECRAFT_SERVICES).noneMatch(endpoint -> Resilience.isUnavailable(endpoint.getUrl())))
+            return null;
 
-            if (xstsToken == null) return;
+        LOG.warn("Authentication services are unavailable, using the cached profile.");
+        return new MinecraftProfile(data.get("profileName"), UndashedUuid.fromString(data.get("profileId")), data.get("mcToken"));
+    }
 
-            reqMinecraftToken();
+    /**
+     * Loads the intermediate tokens of the chain from the Microsoft access token to the Minecraft token that were stored
+     * and are still valid, so that the chain can be resumed from the first token that is not.
+     * @param data The stored data of the account
+     * @param tokens The tokens to add the loaded tokens to.
+     * @return The given tokens with the loaded tokens added, or the very same tokens if none were loaded.
+     */
+    private static Tokens loadChainTokens(Map<String, String> data, Tokens tokens) {
+        long now = System.currentTimeMillis() + EXPIRY_MARGIN;
+        if (getLong(data, "accessTokenExpiry") > now) tokens = tokens.withAccessToken(data.get("accessToken"), getLong(data, "accessTokenExpiry"), tokens.refreshToken);
+        if (getLong(data, "xblExpiry") > now && data.get("userHash") != null) tokens = tokens.withXblToken(data.get("xblToken"), getLong(data, "xblExpiry"), data.get("userHash"));
+        if (getLong(data, "xstsExpiry") > now && data.get("userHash") != null) tokens = tokens.withXstsToken(data.get("xstsToken"), getLong(data, "xstsExpiry"), data.get("userHash"));
 
-            if (mcToken == null) refreshToken = null; // It's invalid.
-            else if (reqProfile()) saveData(storeRefreshToken);
-        } finally {
-            if (client != null) client.close(); // We won't be needing it anymore.
+        return tokens;
+    }
+
+    /**
+     * Resumes the chain from the tokens loaded by {@link #loadChainTokens(Map, Tokens)}.
+     * @param tokens The loaded tokens
+     * @return A future that completes with the resulting tokens or with {@code null} if they did not result in a profile,
+     * in which case the chain should be started over.
+     */
+    private CompletableFuture<Tokens> resumeChain(Tokens tokens) {
+        LOG.info("Requesting new token using the cached " + (tokens.xstsToken != null ? "XSTS" : tokens.xblToken != null ? "XBL" : "Microsoft") + " token.");
+        return reqMinecraftTokenChain(tokens).thenApply(result -> {
+            if (result.profile != null) return result;
+
+            LOG.info("Cached tokens were rejected, starting over.");
+            return null;
+        });
+    }
+
+    /**
+     * Does all steps from the first token we don't have yet to the Minecraft profile and stores the resulting tokens.
+     * Usually that's every step from the Microsoft access token on, but the chain can also be resumed from cached tokens.
+     * @param tokens The tokens acquired so far.
+     * @return A future that completes with the tokens acquired by the chain, which only contain a profile if every step succeeded.
+     */
+    private CompletableFuture<Tokens> reqMinecraftTokenChain(Tokens tokens) {
+        if (tokens.xstsToken == null) {
+            if (tokens.xblToken == null) {
+                if (tokens.accessToken == null) return CompletableFuture.completedFuture(tokens);
+
+                return reqXBLToken(tokens).thenCompose(result -> result.xblToken == null ? CompletableFuture.completedFuture(result) : reqMinecraftTokenChain(result));
+            }
+
+            return reqXSTSToken(tokens).thenCompose(result -> result.xstsToken == null ? CompletableFuture.completedFuture(result) : reqMinecraftTokenChain(result));
         }
+
+        return reqMinecraftToken(tokens).thenCompose(result -> result.mcToken == null ? CompletableFuture.completedFuture(result) :
+                reqProfile(result.mcToken).thenApplyAsync(profile -> {
+                    if (profile == null) return result;
+
+                    Tokens complete = result.withProfile(profile);
+                    saveData(complete, storeRefreshToken);
+                    return complete;
+                }, executor));
     }
 
     /**
-     * Acquires a device code and asks the user to authenticate
-     * with it. Then gets the access token and refresh token from
-     * Microsoft once the user has authenticated.
-     * @throws IOException If anything goes wrong with the request.
+     * Asks the user to authenticate, either with a device code or, if the {@code devlogin.authFlow}
+     * system property is set to {@code browser}, in their browser. Then gets the access token and
+     * refresh token from Microsoft once the user has authenticated.
+     * @param tokens The tokens acquired so far.
+     * @return A future that completes with the given tokens plus the Microsoft tokens, or without them if the user
+     * did not authenticate, which has been reported to the user already.
      */
-    private static void reqTokens() throws IOException {
-        doRequest("POST", "https://login.microsoftonline.com/consumers/oauth2/v2.0/devicecode",
-                String.format("client_id=%s&scope=%s", URLEncoder.encode(CLIENT_ID, "UTF-8"), URLEncoder.encode("XboxLive.signin offline_access", "UTF-8")),
-                ImmutableMap.of("Content-Type", "application/x-www-form-urlencoded"), (con, resp) -> {
-                    JsonObject respObj = new Gson().fromJson(resp, JsonObject.class);
+    private CompletableFuture<Tokens> reqTokens(Tokens tokens) {
+        if (!interactive) {
+            LOG.error("The stored tokens could not be used and authenticating again requires the user.");
+            return CompletableFuture.completedFuture(tokens);
+        }
+        if (cancelled) {
+            LOG.info("Authentication was cancelled.");
+            return CompletableFuture.completedFuture(tokens);
+        }
+        if (Connectivity.isOffline()) { // No use asking the user to authenticate if that can't be sent anywhere.
+            LOG.error("The stored tokens could not be used and authenticating again requires a network connection.");
+            return CompletableFuture.completedFuture(tokens);
+        }
 
-                    deviceCode = respObj.get("device_code").getAsString();
-                    String verificationUri = respObj.get("verification_uri").getAsString();
-                    String userCode = respObj.get("user_code").getAsString();
+        boolean browser = "browser".equals(System.getProperty("devlogin.authFlow"));
+        Timings.Step step = Timings.start(browser ? "authCode" : "deviceCode");
+        AtomicReference<LoginUi.Handle> dialog = new AtomicReference<>();
+        CompletableFuture<Responses.OAuthTokens> future;
+        try {
+            future = browser ? reqTokensWithBrowser(step, dialog) : reqTokensWithDeviceCode(step, dialog);
+        } catch (IOException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
 
-                    mainDialog = showDialog("DevLogin MSA Authentication", String.format("Please visit <a href=\"%s\">%s</a> and enter code <b>%s</b>.",
-                            verificationUri, verificationUri, userCode), () -> isCancelled = true);
+        return future.handleAsync((resp, t) -> {
+            LoginUi.Handle handle = dialog.getAndSet(null);
+            // Already closed if the user cancelled by closing it, but not if the login was cancelled.
+            if (handle != null) handle.close();
+            cancelAuthentication = null;
 
-                    int interval = respObj.get("interval").getAsInt();
-                    long expires = System.currentTimeMillis() + respObj.get("expires_in").getAsInt() * 1000L;
+            Throwable cause = unwrap(t);
+            if (cause instanceof CancellationException) {
+                LOG.info("Authentication was cancelled.");
+                return tokens;
+            }
 
-                    try {
-                        Thread.sleep(interval * 1000L);
-                    } catch (InterruptedException ignored) {}
+            if (cause != null) {
+                showDialog("DevLogin MSA Authentication - error", "Could not acquire a token to authenticate your Microsoft account with (" + cause.getClass().getSimpleName() + ").");
+                LOG.error("Could not acquire a token to authenticate your Microsoft account with", cause);
+                return tokens;
+            }
 
-                    try {
-                        reqTokens(interval, expires);
-                    } catch (UnsupportedEncodingException ignored) {} // Impossible at this stage.
-                }, e -> {
-                    showDialog("DevLogin MSA Authentication - error", "Could not acquire a code to authenticate your Microsoft account with (" + e.getClass().getSimpleName() + ").");
-                    LOG.error("Could not acquire a code to authenticate your Microsoft account with", e);
-
-                });
-    }
-
-    /**
-     * Continuously polls every set interval (should be 5 seconds)
-     * to see if the user has authenticated yet.
-     * @param interval The interval the Microsoft API would like us to use (should be 5 seconds).
-     * @param expires Epoch when the device code expires.
-     * @throws UnsupportedEncodingException Should not be possible.
-     */
-    private static void reqTokens(int interval, long expires) throws UnsupportedEncodingException {
-        doRequest("POST", "https://login.microsoftonline.com/consumers/oauth2/v2.0/token",
-                String.format("grant_type=urn:ietf:params:oauth:grant-type:device_code&scope=%s&client_id=%s&device_code=%s", URLEncoder.encode("XboxLive.signin offline_access", "UTF-8"),
-                        URLEncoder.encode(CLIENT_ID, "UTF-8"), URLEncoder.encode(deviceCode, "UTF-8")), ImmutableMap.of("Content-Type", "application/x-www-form-urlencoded"),
-                (con1, resp1) -> {
-                    JsonObject resp1Obj = new Gson().fromJson(resp1, JsonObject.class);
-                    if (resp1Obj.has("error")) {
-                        if ("authorization_pending".equals(resp1Obj.get("error").getAsString()) && System.currentTimeMillis() < expires && !isCancelled)
-                            try {
-                                Thread.sleep(interval * 1000L);
-                                reqTokens(interval, expires);
-                                return;
-                            } catch (InterruptedException | UnsupportedEncodingException ignored) {}
-                    } else {
-                        if (mainDialog != null) mainDialog.dispose();
-                        else LOG.info("Authentication complete, requesting tokens...");
-                        accessToken = resp1Obj.get("access_token").getAsString();
-                        refreshToken = resp1Obj.get("refresh_token").getAsString();
+            LOG.info("Authentication complete, requesting tokens...");
+            return tokens.withAccessToken(resp.accessToken, resp.getExpiry(), resp.refreshToken);
+        }, executor).whenComplete((result, t) -> finish(step, result != null && result.accessToken != null));
+    }
+
+    /**
+     * Acquires a device code and asks the user to authenticate with it,
+     * then polls Microsoft until the user has.
+     * @param dialog Set to the dialog shown to the user, which the caller should close once done.
+     */
+    private CompletableFuture<Responses.OAuthTokens> reqTokensWithDeviceCode(Timings.Step step, AtomicReference<LoginUi.Handle> dialog) {
+        return sendRequest(step, "POST", Endpoint.MICROSOFT.resolve("/consumers/oauth2/v2.0/devicecode"),
+                String.format("client_id=%s&scope=%s", encode(CLIENT_ID), encode(SCOPE)), ImmutableMap.of("Content-Type", "application/x-www-form-urlencoded"), true)
+                .thenComposeAsync(resp -> {
+                    Responses.DeviceCode deviceCode = Json.read(resp, Responses.DeviceCode.class);
+                    if (deviceCode == null || deviceCode.deviceCode == null || deviceCode.userCode == null || deviceCode.verificationUri == null)
+                        throw new CompletionException(new IOException("Could not acquire device code: " + (deviceCode == null ? "empty response" : deviceCode.error)));
+
+                    DeviceCodePoller poller = new DeviceCodePoller(step, String.format("grant_type=urn:ietf:params:oauth:grant-type:device_code&scope=%s&client_id=%s&device_code=%s",
+                            encode(SCOPE), encode(CLIENT_ID), encode(deviceCode.deviceCode)), deviceCode.interval, System.currentTimeMillis() + deviceCode.expiresIn * 1000L);
+
+                    cancelAuthentication = poller::cancel;
+                    if (cancelled) { // Cancelled while the device code was being acquired.
+                        poller.cancel();
+                        return poller.start();
                     }
-                }, (e) -> {
-                    showDialog("DevLogin MSA Authentication - error", "Could not acquire a token to authenticate your Microsoft account with (" + e.getClass().getSimpleName() + ").");
-                    LOG.error("Could not acquire a token to authenticate your Microsoft account with", e);
-                });
-    }
-
-    /**
-     * Acquires a new access token using the stored refresh token.
-     * @param successConsumer Gets called with either {@code true} or {@code false}
-     *                        when finished indicating whether a new access token was acquired.
-     * @throws IOException If anything goes wrong with the request.
-     */
-    private static void refreshToken(BooleanConsumer successConsumer) throws IOException {
-        doRequest("POST", "https://login.microsoftonline.com/consumers/oauth2/v2.0/token",
-                String.format("grant_type=refresh_token&scope=%s&client_id=%s&refresh_token=%s", URLEncoder.encode("XboxLive.signin offline_access", "UTF-8"),
-                        URLEncoder.encode(CLIENT_ID, "UTF-8"), URLEncoder.encode(refreshToken, "UTF-8")), ImmutableMap.of("Content-Type", "application/x-www-form-urlencoded"),
-                (con1, resp1) -> {
-                    JsonObject resp1Obj = new Gson().fromJson(resp1, JsonObject.class);
-                    if (!resp1Obj.has("error")) {
-                        accessToken = resp1Obj.get("access_token").getAsString();
-                        MSA.refreshToken = resp1Obj.get("refresh_token").getAsString();
+
+                    // Closing the dialog cancels the login.
+                    dialog.set(showDialog("DevLogin MSA Authentication", String.format("Please visit %s and enter code <b>%s</b>.",
+                            link(deviceCode.verificationUri, deviceCode.verificationUri), LoopbackServer.escape(deviceCode.userCode)), poller::cancel));
+
+                    return poller.start();
+                }, executor);
+    }
+
+    /**
+     * Uses the authorization code flow with PKCE: the user logs in in their browser, after which Microsoft redirects
+     * the browser to a {@link LoopbackServer}, handing us a code the moment the user is done, rather than us having to poll for it.
+     * The code is then exchanged for tokens with a secret that only we know, so intercepting the code is of no use to anyone else.
+     * @param dialog Set to the dialog shown to the user, which the caller should close once done.
+     * @throws IOException If the loopback server could not be started.
+     */
+    private CompletableFuture<Responses.OAuthTokens> reqTokensWithBrowser(Timings.Step step, AtomicReference<LoginUi.Handle> dialog) throws IOException {
+        String verifier = randomString(32), state = randomString(16);
+        CompletableFuture<String> code = new CompletableFuture<>();
+        LoopbackServer server = new LoopbackServer(0, (method, uri) -> {
+            if (!uri.getPath().equals("/")) return null;
+
+            Map<String, String> params = LoopbackServer.parseQuery(uri.getRawQuery());
+            if (!state.equals(params.get("state"))) return LoopbackServer.Response.text(400, "Unexpected state, please try again.");
+
+            if (params.get("code") != null) code.complete(params.get("code"));
+            else code.completeExceptionally(new IOException("Authentication failed: " + params.get("error") + ", " + params.get("error_description")));
+            return LoopbackServer.Response.html("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>DevLogin</title></head><body style=\"font-family:sans-serif\"><p>" +
+                    (params.get("code") != null ? "You're logged in, you can close this page and return to the game." :
+                            "Logging in failed: " + LoopbackServer.escape(String.valueOf(params.get("error_description")))) + "</p></body></html>");
+        });
+        String redirectUri = encode(server.getUrl());
+        String url = Endpoint.MICROSOFT.resolve("/consumers/oauth2/v2.0/authorize") + String.format("?client_id=%s&response_type=code&redirect_uri=%s" +
+                "&response_mode=query&scope=%s&state=%s&code_challenge=%s&code_challenge_method=S256&prompt=select_account", encode(CLIENT_ID), redirectUri, encode(SCOPE), state, sha256(verifier));
+
+        // Same as the device code, it expires after 15 minutes.
+        ScheduledFuture<?> expiry = DevLogin.getScheduler().schedule(() -> code.completeExceptionally(new TimeoutException("The login page has expired.")), 15, TimeUnit.MINUTES);
+        cancelAuthentication = () -> code.cancel(false);
+
+        // Closing the dialog cancels the login.
+        if (cancelled) code.cancel(false); // Cancelled while the server was being started.
+        else dialog.set(showDialog("DevLogin MSA Authentication", Browser.open(url) ? "Please log in on the page that opened in your browser. If none opened, visit " + link(url, "this page") + "." :
+                "Please visit " + link(url, "this page") + " to log in.", () -> code.cancel(false)));
+
+        String body = String.format("grant_type=authorization_code&scope=%s&client_id=%s&redirect_uri=%s&code_verifier=%s&code=", encode(SCOPE), encode(CLIENT_ID), redirectUri, verifier);
+        return code.whenComplete((c, t) -> {
+                    expiry.cancel(false);
+                    try {
+                        server.close();
+                    } catch (IOException e) {
+                        LOG.debug("Could not close the loopback server.", e);
                     }
-                    successConsumer.accept(true);
-                }, (e) -> {
-                    showDialog("DevLogin MSA Authentication - error", "Could not acquire a token to authenticate your Microsoft account with (" + e.getClass().getSimpleName() + ").");
-                    LOG.error("Could not refresh token", e);
-                    successConsumer.accept(false);
-                });
+                })
+                // Codes can only be used once, so this must not be repeated.
+                .thenCompose(c -> sendRequest(step, "POST", Endpoint.MICROSOFT.resolve("/consumers/oauth2/v2.0/token"), body + encode(c),
+                        ImmutableMap.of("Content-Type", "application/x-www-form-urlencoded"), false))
+                .thenApplyAsync(resp -> {
+                    Responses.OAuthTokens tokens = Json.read(resp, Responses.OAuthTokens.class);
+                    if (tokens == null || !tokens.isOk()) throw new CompletionException(new IOException("Could not redeem code: " + (tokens == null ? "empty response" : tokens.error)));
+                    return tokens;
+                }, executor);
+    }
+
+    /**
+     * Starts acquiring a new access token using the refresh token of a stored account.
+     * If Microsoft says the refresh token is no longer valid, e.g. because the user changed their password, it is removed from the store,
+     * as it will never work again.
+     * @param data The stored data of the account, which must contain a refresh token.
+     * @return A future that completes with the response, which contains an error if the refresh token was rejected.
+     */
+    private CompletableFuture<Responses.OAuthTokens> startRefresh(Map<String, String> data) {
+        String refreshToken = data.get("refreshToken");
+        // Not the current step, as it runs alongside other steps.
+        Timings.Step step = Timings.start("refreshToken");
+        return sendRequest(step, "POST", Endpoint.MICROSOFT.resolve("/consumers/oauth2/v2.0/token"),
+                String.format("grant_type=refresh_token&scope=%s&client_id=%s&refresh_token=%s", encode(SCOPE), encode(CLIENT_ID), encode(refreshToken)),
+                ImmutableMap.of("Content-Type", "application/x-www-form-urlencoded"), false)
+                .thenApplyAsync(resp -> {
+                    Responses.OAuthTokens tokens = Json.read(resp, Responses.OAuthTokens.class);
+                    if (tokens != null && "invalid_grant".equals(tokens.error) && data.get("profileId") != null)
+                        TokenStore.revokeRefreshToken(data.get("profileId"), refreshToken);
+                    return tokens;
+                }, executor)
+                .whenComplete((tokens, t) -> finish(step, tokens != null && tokens.isOk()));
+    }
+
+    /**
+     * Waits for a refresh started by {@link #startRefresh(Map)} to finish and adds the tokens it resulted in.
+     * @param refresh The future returned by {@link #startRefresh(Map)}
+     * @param tokens The tokens acquired so far.
+     * @return A future that completes with the given tokens plus the new access token, or with {@code null} if no new access token was acquired.
+     */
+    private CompletableFuture<Tokens> awaitRefresh(CompletableFuture<Responses.OAuthTokens> refresh, Tokens tokens) {
+        return within(refresh, Resilience.getTimeout("refreshToken") + 1000).handle((resp, t) -> {
+            if (t != null) {
+                showDialog("DevLogin MSA Authentication - error", "Could not acquire a token to authenticate your Microsoft account with (" + unwrap(t).getClass().getSimpleName() + ").");
+                LOG.error("Could not refresh token", unwrap(t));
+                return null;
+            }
+
+            return resp == null || !resp.isOk() ? null : tokens.withAccessToken(resp.accessToken, resp.getExpiry(), resp.refreshToken);
+        });
+    }
+
+    /**
+     * Abandons a refresh started by {@link #startRefresh(Map)} that turned out to be unnecessary.
+     * The request can't be taken back once sent and Microsoft may hand out a new refresh token in return,
+     * so rather than aborting it, it is left to finish in the background and the new refresh token is stored, if any.
+     * @param refresh The future returned by {@link #startRefresh(Map)}
+     * @param profile The profile of the account that was refreshed.
+     */
+    private void discardRefresh(CompletableFuture<Responses.OAuthTokens> refresh, MinecraftProfile profile) {
+        String profileId = UndashedUuid.toString(profile.getUuid());
+        refresh.thenAcceptAsync(tokens -> {
+            if (storeRefreshToken && tokens != null && tokens.isOk())
+                TokenStore.update(profileId, Collections.singletonMap("refreshToken", tokens.refreshToken));
+        }, executor);
     }
 
     /**
      * Requests the XBL token from Xbox Live using the Microsoft access token.
      */
-    private static void reqXBLToken() {
+    private CompletableFuture<Tokens> reqXBLToken(Tokens tokens) {
         String body = " {\n" +
                 "    \"Properties\": {\n" +
                 "        \"AuthMethod\": \"RPS\",\n" +
                 "        \"SiteName\": \"user.auth.xboxlive.com\",\n" +
-                "        \"RpsTicket\": \"d=" + accessToken + "\"" +
+                "        \"RpsTicket\": \"d=" + tokens.accessToken + "\"" +
                 "    },\n" +
                 "    \"RelyingParty\": \"http://auth.xboxlive.com\",\n" +
                 "    \"TokenType\": \"JWT\"\n" +
                 " }";
-        doRequest("POST", "https://user.auth.xboxlive.com/user/authenticate", body, ImmutableMap.of("Content-Type", "application/json", "Accept", "application/json"),
-                (con, resp) -> {
-                    JsonObject respObj = new Gson().fromJson(resp, JsonObject.class);
-                    xblToken = respObj.get("Token").getAsString();
-                    userHash = respObj
-                            .get("DisplayClaims").getAsJsonObject()
-                            .get("xui").getAsJsonArray()
-                            .get(0).getAsJsonObject()
-                            .get("uhs").getAsString();
+        Timings.Step step = Timings.start("xbl");
+        return request(step, "POST", Endpoint.XBL.resolve("/user/authenticate"), body, ImmutableMap.of("Content-Type", "application/json", "Accept", "application/json"),
+                Responses.XboxToken.class).handle((resp, t) -> {
+                    if (t != null) {
+                        showDialog("DevLogin MSA Authentication - error", "Could not acquire XBL token (" + unwrap(t).getClass().getSimpleName() + ").");
+                        LOG.error("Could not acquire XBL token", unwrap(t));
+                        return tokens;
+                    }
 
-                }, e -> {
-                    showDialog("DevLogin MSA Authentication - error", "Could not acquire XBL token (" + e.getClass().getSimpleName() + ").");
-                    LOG.error("Could not acquire XBL token", e);
+                    if (resp == null || resp.token == null || resp.userHash == null) {
+                        showDialog("DevLogin MSA Authentication - error", "Could not acquire XBL token (" + (resp == null ? "empty response" : "error " + resp.xErr) + ").");
+                        LOG.error("Could not acquire XBL token: " + (resp == null ? "empty response" : "error " + resp.xErr + ", " + resp.message));
+                        return tokens;
+                    }
 
-                });
+                    return tokens.withXblToken(resp.token, resp.getNotAfter(), resp.userHash);
+                }).whenComplete((result, t) -> finish(step, result != null && result.xblToken != null));
     }
 
     /**
      * Requests the XSTS token from Xbox Live using the XBL token.
      */
-    private static void reqXSTSToken() {
+    private CompletableFuture<Tokens> reqXSTSToken(Tokens tokens) {
         String body = " {\n" +
                 "    \"Properties\": {\n" +
                 "        \"SandboxId\": \"RETAIL\",\n" +
                 "        \"UserTokens\": [\n" +
-                "            \"" + xblToken + "\"" +
+                "            \"" + tokens.xblToken + "\"" +
                 "        ]\n" +
                 "    },\n" +
                 "    \"RelyingParty\": \"rp://api.minecraftservices.com/\",\n" +
                 "    \"TokenType\": \"JWT\"\n" +
                 " }";
-        doRequest("POST", "https://xsts.auth.xboxlive.com/xsts/authorize", body, ImmutableMap.of("Content-Type", "application/json", "Accept", "application/json"),
-                (con, resp) -> {
-                    JsonObject respObject = new Gson().fromJson(resp, JsonObject.class);
-                    //respObject.addProperty("XErr", 2148916238L);
-                    if (respObject.has("XErr"))
+        Timings.Step step = Timings.start("xsts");
+        return request(step, "POST", Endpoint.XSTS.resolve("/xsts/authorize"), body, ImmutableMap.of("Content-Type", "application/json", "Accept", "application/json"),
+                Responses.XboxToken.class).handle((resp, t) -> {
+                    if (t != null) {
+                        showDialog("DevLogin MSA Authentication - error", "Could not acquire XSTS token (" + unwrap(t).getClass().getSimpleName() + ").");
+                        LOG.error("Could not acquire XSTS token", unwrap(t));
+                        return tokens;
+                    }
+
+                    //resp.xErr = 2148916238L;
+                    if (resp == null || resp.xErr != 0 || resp.token == null) {
                         showDialog("DevLogin MSA Authentication - error", "Could not acquire XSTS token<br>" +
-                                "Error code: " + respObject.get("XErr") + ", message: " + respObject.get("Message") + ", redirect: " +
-                                (respObject.has("Redirect") ? "<a href=\"" + respObject.get("Redirect") + "\">" +
-                                        respObject.get("Redirect") + "</a>" : "null") + "<br>" +
+                                "Error code: " + (resp == null ? "none" : resp.xErr) + ", message: " + LoopbackServer.escape(String.valueOf(resp == null ? null : resp.message)) + ", redirect: " +
+                                (resp != null && resp.redirect != null ? link(resp.redirect, resp.redirect) : "null") + "<br>" +
                                 "Have a look <a href=\"https://wiki.vg/Microsoft_Authentication_Scheme#Authenticate_with_XSTS\">here</a> " +
                                 "for a short list of known error codes.");
-                    else xstsToken = respObject.get("Token").getAsString();
-                }, e -> {
-                    showDialog("DevLogin MSA Authentication - error", "Could not acquire XSTS token (" + e.getClass().getSimpleName() + ").");
-                    LOG.error("Could not acquire XSTS token", e);
-                });
+                        return tokens;
+                    }
+
+                    return tokens.withXstsToken(resp.token, resp.getNotAfter(), resp.userHash != null ? resp.userHash : tokens.userHash);
+                }).whenComplete((result, t) -> finish(step, result != null && result.xstsToken != null));
     }
 
     /**
      * Requests the Minecraft token from Minecraft Services using the XSTS token.
+     * @return A future that completes with the given tokens plus the Minecraft token, or without any Minecraft token if it could not be acquired.
      */
-    private static void reqMinecraftToken() {
-        String body = "{\"identityToken\": \"XBL3.0 x=" + userHash + ";" + xstsToken + "\"}";
-        doRequest("POST", "https://api.minecraftservices.com/authentication/login_with_xbox", body,
-                ImmutableMap.of("Content-Type", "application/json", "Accept", "application/json"), (con, resp) -> {
-                    JsonObject respObject = new Gson().fromJson(resp, JsonObject.class);
-                    if (respObject.has("error") && "UnauthorizedOperationException".equals(respObject.get("error").getAsString())) mcToken = null;
-                    else mcToken = respObject.get("access_token").getAsString();
-                }, e -> {
-                    showDialog("DevLogin MSA Authentication - error", "Could not acquire Minecraft token (" + e.getClass().getSimpleName() + ").");
-                    LOG.error("Could not acquire Minecraft token", e);
-                });
+    private CompletableFuture<Tokens> reqMinecraftToken(Tokens tokens) {
+        String body = "{\"identityToken\": \"XBL3.0 x=" + tokens.userHash + ";" + tokens.xstsToken + "\"}";
+        Timings.Step step = Timings.start("minecraftToken");
+        return request(step, "POST", Endpoint.MINECRAFT_SERVICES.resolve("/authentication/login_with_xbox"), body,
+                ImmutableMap.of("Content-Type", "application/json", "Accept", "application/json"), Responses.MinecraftToken.class).handle((resp, t) -> {
+                    if (t != null) {
+                        showDialog("DevLogin MSA Authentication - error", "Could not acquire Minecraft token (" + unwrap(t).getClass().getSimpleName() + ").");
+                        LOG.error("Could not acquire Minecraft token", unwrap(t));
+                    } else if (resp != null && resp.accessToken != null) return tokens.withMcToken(resp.accessToken);
+                    else if (resp == null || !"UnauthorizedOperationException".equals(resp.error)) {
+                        showDialog("DevLogin MSA Authentication - error", "Could not acquire Minecraft token (" + (resp == null ? "empty response" : LoopbackServer.escape(String.valueOf(resp.error))) + ").");
+                        LOG.error("Could not acquire Minecraft token: " + (resp == null ? "empty response" : resp.error));
+                    }
+
+                    return tokens.withMcToken(null);
+                }).whenComplete((result, t) -> finish(step, result != null && result.mcToken != null));
     }
 
     /**
@@ -301,183 +568,337 @@ public class MSA {
      * Required to login as logging in requires the username and uuid of the player.
      * Also used to check if the token is valid.
      *
-     * @return Whether the account associated with this token owns Minecraft.
+     * @return A future that completes with the profile or with {@code null} if the token is invalid or the account does not own Minecraft.
      */
-    public static boolean reqProfile() {
-        if (profile != null) return true;
-
-        AtomicBoolean ownsMc = new AtomicBoolean();
-
-        doRequest("GET", "https://api.minecraftservices.com/minecraft/profile", null, ImmutableMap.of("Authorization", "Bearer " + mcToken), (con, resp) -> {
-            JsonObject respObj = new Gson().fromJson(resp, JsonObject.class);
-            ownsMc.set(respObj != null && !respObj.has("error") && respObj.has("name"));
-
-            if (ownsMc.get() && respObj != null) // Null-check to get rid of warning.
-                profile = new MinecraftProfile(
-                        respObj.get("name").getAsString(),
-                        UndashedUuid.fromString(respObj.get("id").getAsString()),
-                        mcToken
-                );
-        }, LOG::catching);
+    private CompletableFuture<MinecraftProfile> reqProfile(String mcToken) {
+        Timings.Step step = Timings.start("profile");
+        return request(step, "GET", Endpoint.MINECRAFT_SERVICES.resolve("/minecraft/profile"), null, ImmutableMap.of("Authorization", "Bearer " + mcToken),
+                Responses.Profile.class).handle((resp, t) -> {
+                    if (t != null) {
+                        LOG.catching(unwrap(t));
+                        return null;
+                    }
 
-        return ownsMc.get();
+                    return resp != null && resp.isOk() ? new MinecraftProfile(resp.name, UndashedUuid.fromString(resp.id), mcToken) : null;
+                }).whenComplete((profile, t) -> finish(step, profile != null));
     }
 
-    // Access methods
+    // Utility methods
 
     /**
-     * @return Whether we have successfully logged in.
+     * Performs an HTTP request and decodes its response on the executor. Transient failures are retried and slow requests
+     * hedged (see {@link Resilience}), so the request must be safe to repeat, which all requests for tokens and profiles are.
+     * @param step The step the request is part of.
+     * @param type The type to decode the response as, which should have an adapter registered with {@link Json#GSON}.
+     * @return A future that completes with the decoded response, which is {@code null} if it was empty, or exceptionally if the
+     * request failed or the response could not be decoded.
      */
-    public static boolean isLoggedIn() {
-        return mcToken != null;
+    private <T> CompletableFuture<T> request(Timings.Step step, String method, String url, String body, Map<String, String> headers, Class<T> type) {
+        // The request gives up by itself once the step is out of time, this is just in case it does not.
+        return within(sendRequest(step, method, url, body, headers, true), Resilience.getTimeout(step) + 1000).thenApplyAsync(resp -> Json.read(resp, type), executor);
     }
 
     /**
-     * @return The Minecraft profile associated with the account used to login.
+     * Performs an HTTP request without waiting for the response.
+     * @param step The step the request is part of, used to time it.
+     * @param method The method this HTTP request uses. E.g. GET, POST, DELETE, etc.
+     * @param urlStr The URL to make this request to.
+     * @param body The body of the request. Used for most request methods except GET.
+     * @param headers The headers to attach to this request. E.g. Content-Type or User-Agent.
+     * @param idempotent Whether the request is safe to repeat and may thus be retried and hedged.
+     * @return A future that completes with the response.
      */
-    public static MinecraftProfile getProfile() {
-        return profile;
+    private CompletableFuture<HttpTransport.Response> sendRequest(Timings.Step step, String method, String urlStr, String body, Map<String, String> headers, boolean idempotent) {
+        // Finds out whether there's a network connection at all alongside the first request.
+        Connectivity.check(proxy);
+        // The transport is shared, so it's not ours to close.
+        return Resilience.execute(Http.getTransport(proxy), new HttpTransport.Request(method, urlStr, body, headers), step, idempotent);
     }
 
     /**
-     * Deletes all stored tokens once as they could pose a security threat.
-     * Should be called after the entire process is finished.
+     * @return A future that completes like the given one, or with a {@link TimeoutException} if it takes longer than the given time in milliseconds.
      */
-    public static void cleanup() {
-        deviceCode = null;
-        accessToken = null;
-        refreshToken = null;
-        xblToken = null;
-        userHash = null;
-        xstsToken = null;
-        mcToken = null;
-        profile = null;
+    private static <T> CompletableFuture<T> within(CompletableFuture<T> future, long timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timer = DevLogin.getScheduler().schedule(() -> result.completeExceptionally(new TimeoutException()), timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, t) -> {
+            timer.cancel(false);
+            if (t != null) result.completeExceptionally(t);
+            else result.complete(value);
+        });
+        return result;
     }
 
-    // Utility methods
-
     /**
-     * Performs an HTTP request.
-     * @param method The method this HTTP request uses. E.g. GET, POST, DELETE, etc.
-     * @param urlStr The URL to make this request to.
-     * @param body The body of the request. Used for most request methods except GET.
-     * @param headers The headers to attach to this request. E.g. Content-Type or User-Agent.
-     * @param responseConsumer The consumer called on a successful response. Gets the connection used and the plain-text response.
-     * @param exceptionConsumer The consumer called when an error occurs. Gets the exception that was thrown.
+     * @return The cause of the given exception if it's one of the exceptions futures wrap failures in, or the exception itself otherwise.
      */
-    public static void doRequest(String method, String urlStr, String body, Map<String, String> headers, BiConsumer<Response, String> responseConsumer, Consumer<Throwable> exceptionConsumer) {
-        BoundRequestBuilder req = client.prepare(method, urlStr);
-
-        if (body != null) req.setBody(body);
-
-        if (headers != null) req.setSingleHeaders(headers);
+    private static Throwable unwrap(Throwable t) {
+        return (t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null ? t.getCause() : t;
+    }
 
-        // The game has to wait for us to be able to acquire a token so the fact that these
-        // requests are blocking the main thread is not a bad thing.
-        // However, for some reason the time it takes for the response consumer to finish consuming
-        // is also taken into account by the timeout. Since the response consumer from the reqTokens
-        // method waits for 1 second or until it times out, this can easily hit the 10-second timeout.
-        // Hence, we don't call the response consumer on the completable future.
-        CompletableFuture<Response> future = req.execute().toCompletableFuture();
-        try {
-            Response resp = future.get(10, TimeUnit.SECONDS);
-            responseConsumer.accept(resp, resp.getResponseBody());
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            exceptionConsumer.accept(e);
-        }
+    private static void finish(Timings.Step step, boolean success) {
+        if (success) step.succeed();
+        step.close();
     }
 
     /**
-     * Shows a basic Swing dialog with a title and a message.
+     * Shows a message to the user, in a dialog or however else the user asked for (see {@link LoginUi}).
      * @param title The title of the dialog.
      * @param message The message this dialog should contain.
      */
-    public static void showDialog(String title, String message) {
+    private void showDialog(String title, String message) {
         showDialog(title, message, null);
     }
 
     /**
-     * Shows a basic Swing dialog with a title and a message.
+     * Shows a message to the user, in a dialog or however else the user asked for (see {@link LoginUi}).
      * @param title The title of the dialog.
      * @param message The message this dialog should contain.
-     * @param onDispose The runnable called when the dialog is disposed (closed).
+     * @param onDispose The runnable called when the dialog is disposed (closed) by the user.
+     * @return A handle to close the dialog with.
      */
-    public static JFrame showDialog(String title, String message, Runnable onDispose) {
-        if (noDialog) {
-            LOG.info("\n-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-\n" +
-                    tagPattern.matcher(urlPattern.matcher(message).replaceAll("$1")).replaceAll("$2").replace("<br>", "\n") +
-                    "\n-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-");
+    private LoginUi.Handle showDialog(String title, String message, Runnable onDispose) {
+        // Without a network connection every step fails, no need to pop up a dialog for each of them.
+        return LoginUi.get(noDialog || Connectivity.isOffline()).show(title, message, onDispose);
+    }
 
-            return null;
+    /**
+     * @param url The URL to link to, which may come from a response.
+     * @param text The text of the link
+     * @return An HTML link to the given URL, or just the text if the URL is not that of a web page, with both escaped.
+     */
+    private static String link(String url, String text) {
+        if (!url.startsWith("https://") && !url.startsWith("http://")) return LoopbackServer.escape(text);
+        return "<a href=\"" + LoopbackServer.escape(url) + "\">" + LoopbackServer.escape(text) + "</a>";
+    }
+
+    /**
+     * Stores some of the tokens that are required to login.
+     * @param tokens The tokens of the login, which must contain a profile.
+     * @param storeRefreshToken Whether the refresh token should be stored.
+     */
+    private static void saveData(Tokens tokens, boolean storeRefreshToken) {
+        Map<String, String> data = new HashMap<>();
+        data.put("refreshToken", storeRefreshToken ? tokens.refreshToken : null);
+        data.put("mcToken", tokens.mcToken);
+        data.put("profileName", tokens.profile.getName());
+        data.put("profileId", UndashedUuid.toString(tokens.profile.getUuid()));
+
+        // The tokens in between live longer than the Minecraft token, so they can often be used to get a new one.
+        // They're as sensitive as the refresh token, so they're only stored if that is too.
+        if (storeRefreshToken) {
+            putToken(data, "accessToken", tokens.accessToken, tokens.accessTokenExpiry);
+            putToken(data, "xblToken", tokens.xblToken, tokens.xblExpiry);
+            putToken(data, "xstsToken", tokens.xstsToken, tokens.xstsExpiry);
+            data.put("userHash", tokens.userHash);
         }
 
-        if (!Minecraft.ON_OSX) // Calls to setLookAndFeel on Mac appear to freeze the game.
-            try {
-                UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | UnsupportedLookAndFeelException e) {
-                LOG.error("Could not set system look and feel.", e);
-            }
+        TokenStore.put(data);
+    }
 
-        JFrame frame = new JFrame(title);
-        frame.setLayout(new GridBagLayout());
+    private static void putToken(Map<String, String> data, String name, String token, long expiry) {
+        if (token == null || expiry == 0) return;
 
-        JEditorPane textPane = new JEditorPane();
-        textPane.setContentType("text/html");
-        textPane.setText("<html>" + message + "</html>");
-        textPane.addHyperlinkListener(e -> {
-            if (e.getEventType() == HyperlinkEvent.EventType.ACTIVATED)
-                try {
-                    Desktop.getDesktop().browse(e.getURL().toURI());
-                } catch (IOException | URISyntaxException ex) {
-                    LOG.error("Error while trying to browse to " + e.getURL(), ex);
-                }
-        });
-        textPane.setEditable(false);
-        textPane.setOpaque(false);
-        frame.add(textPane);
-
-        frame.pack();
-        frame.setSize(frame.getWidth() + 20, frame.getHeight() + 50);
-        frame.setLocationRelativeTo(null);
-        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        frame.addWindowListener(new WindowAdapter() {
-            @Override
-            public void windowClosed(WindowEvent e) {
-                if (onDispose != null) onDispose.run();
-            }
-        });
-        frame.setVisible(true);
+        data.put(name, token);
+        data.put(name.replace("Token", "") + "Expiry", String.valueOf(expiry));
+    }
 
-        return frame;
+    private static long getLong(Map<String, String> data, String key) {
+        try {
+            return data.get(key) == null ? 0 : Long.parseLong(data.get(key));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // Impossible, UTF-8 is always supported.
+        }
     }
 
     /**
-     * Stores some of the tokens that are required to login.
-     * @param storeRefreshToken Whether the refresh token should be stored.
+     * @param bytes The amount of random bytes
+     * @return A string of the given amount of securely random bytes, encoded as URL-safe Base64.
      */
-    private static void saveData(boolean storeRefreshToken) {
-        Map<String, String> data = new HashMap<>();
-        data.put("refreshToken", storeRefreshToken ? refreshToken : null);
-        data.put("mcToken", mcToken);
+    static String randomString(int bytes) {
+        byte[] random = new byte[bytes];
+        new SecureRandom().nextBytes(random);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+    }
 
-        try (PrintWriter writer = new PrintWriter(tokenFile, "UTF-8")) {
-            writer.print(new GsonBuilder().setPrettyPrinting().create().toJson(data));
-            writer.flush();
-        } catch (IOException e) {
-            LOG.error("Could not save token data.", e);
+    /**
+     * @return The SHA-256 of the given ASCII string, encoded as URL-safe Base64, as used for PKCE code challenges.
+     */
+    private static String sha256(String s) {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM supports SHA-256.
         }
     }
 
     /**
-     * Reads data that was potentially saved before.
-     * @return The data that was saved before or null if an error occurs or there is no stored data.
+     * Reads the expiry of a JWT, like the Minecraft token, without contacting any servers.
+     * @param token The token to read the expiry of.
+     * @return The epoch in milliseconds at which the token expires or {@code 0} if it could not be read.
      */
-    private static Map<String, String> readData() {
+    static long getTokenExpiry(String token) {
+        if (token == null) return 0;
+
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) return 0;
+
         try {
-            return tokenFile.exists() ? new Gson().fromJson(String.join("\n", Files.readAllLines(tokenFile.toPath())), new TypeToken<Map<String, String>>() {}.getType()) : null;
-        } catch (IOException e) {
-            LOG.error("Could not read token data.", e);
-            return null;
+            Responses.JwtPayload payload = Json.read(new ByteArrayInputStream(Base64.getUrlDecoder().decode(parts[1])), Responses.JwtPayload.class);
+            return payload == null ? 0 : payload.exp * 1000L;
+        } catch (IllegalArgumentException | JsonParseException e) {
+            LOG.debug("Could not read the expiry of a token.", e);
+            return 0;
+        }
+    }
+
+    /**
+     * The tokens acquired by a login so far, sorted by the steps they're acquired in.
+     * Never changed once made, every step makes a copy with the tokens it acquired added.
+     */
+    private static class Tokens {
+        private static final Tokens EMPTY = new Tokens(null, 0, null, null, 0, null, null, 0, null, null);
+        private final String accessToken, refreshToken;
+        private final long accessTokenExpiry; // Epoch millis, 0 if unknown, same for the other expiries.
+        private final String xblToken, userHash;
+        private final long xblExpiry;
+        private final String xstsToken;
+        private final long xstsExpiry;
+        private final String mcToken;
+        private final MinecraftProfile profile;
+
+        private Tokens(String accessToken, long accessTokenExpiry, String refreshToken, String xblToken, long xblExpiry, String userHash,
+                       String xstsToken, long xstsExpiry, String mcToken, MinecraftProfile profile) {
+            this.accessToken = accessToken;
+            this.accessTokenExpiry = accessTokenExpiry;
+            this.refreshToken = refreshToken;
+            this.xblToken = xblToken;
+            this.xblExpiry = xblExpiry;
+            this.userHash = userHash;
+            this.xstsToken = xstsToken;
+            this.xstsExpiry = xstsExpiry;
+            this.mcToken = mcToken;
+            this.profile = profile;
+        }
+
+        private Tokens withRefreshToken(String refreshToken) {
+            return new Tokens(accessToken, accessTokenExpiry, refreshToken, xblToken, xblExpiry, userHash, xstsToken, xstsExpiry, mcToken, profile);
+        }
+
+        private Tokens withAccessToken(String accessToken, long expiry, String refreshToken) {
+            return new Tokens(accessToken, expiry, refreshToken, xblToken, xblExpiry, userHash, xstsToken, xstsExpiry, mcToken, profile);
+        }
+
+        private Tokens withXblToken(String xblToken, long expiry, String userHash) {
+            return new Tokens(accessToken, accessTokenExpiry, refreshToken, xblToken, expiry, userHash, xstsToken, xstsExpiry, mcToken, profile);
+        }
+
+        private Tokens withXstsToken(String xstsToken, long expiry, String userHash) {
+            return new Tokens(accessToken, accessTokenExpiry, refreshToken, xblToken, xblExpiry, userHash, xstsToken, expiry, mcToken, profile);
+        }
+
+        private Tokens withMcToken(String mcToken) {
+            return new Tokens(accessToken, accessTokenExpiry, refreshToken, xblToken, xblExpiry, userHash, xstsToken, xstsExpiry, mcToken, profile);
+        }
+
+        private Tokens withProfile(MinecraftProfile profile) {
+            return new Tokens(accessToken, accessTokenExpiry, refreshToken, xblToken, xblExpiry, userHash, xstsToken, xstsExpiry, mcToken, profile);
+        }
+    }
+
+    /**
+     * Polls Microsoft every interval to see if the user has authenticated with the device code yet.
+     * Every poll is scheduled on the scheduler and every response is handled asynchronously,
+     * so no thread is kept waiting, no matter how long the user takes.
+     */
+    private class DeviceCodePoller {
+        private final CompletableFuture<Responses.OAuthTokens> result = new CompletableFuture<>();
+        private final Timings.Step step;
+        private final String body;
+        private final long expires;
+        private int interval;
+
+        /**
+         * @param step The step the polls are part of.
+         * @param body The body of every poll request.
+         * @param interval The interval the Microsoft API would like us to use in seconds (should be 5 seconds).
+         * @param expires Epoch when the device code expires.
+         */
+        private DeviceCodePoller(Timings.Step step, String body, int interval, long expires) {
+            this.step = step;
+            this.body = body;
+            this.interval = interval;
+            this.expires = expires;
+        }
+
+        /**
+         * @return A future that completes with the token response once the user has authenticated.
+         */
+        private CompletableFuture<Responses.OAuthTokens> start() {
+            schedule();
+            return result;
+        }
+
+        /**
+         * Stops polling.
+         */
+        private void cancel() {
+            result.cancel(false);
+        }
+
+        private void schedule() {
+            if (!result.isDone()) DevLogin.getScheduler().schedule(this::poll, interval, TimeUnit.SECONDS);
+        }
+
+        private void poll() {
+            if (result.isDone()) return;
+            if (System.currentTimeMillis() >= expires) {
+                result.completeExceptionally(new TimeoutException("The device code has expired."));
+                return;
+            }
+
+            sendRequest(step, "POST", Endpoint.MICROSOFT.resolve("/consumers/oauth2/v2.0/token"), body,
+                    ImmutableMap.of("Content-Type", "application/x-www-form-urlencoded"), false).whenCompleteAsync((resp, t) -> {
+                if (t != null) {
+                    result.completeExceptionally(t);
+                    return;
+                }
+
+                Responses.OAuthTokens tokens;
+                try {
+                    tokens = Json.read(resp, Responses.OAuthTokens.class);
+                } catch (JsonParseException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+
+                if (tokens != null && tokens.isOk()) {
+                    result.complete(tokens);
+                    return;
+                }
+
+                String error = tokens == null ? "empty response" : tokens.error;
+                switch (String.valueOf(error)) {
+                    case "authorization_pending":
+                        schedule();
+                        break;
+                    case "slow_down":
+                        interval += 5; // As per RFC 8628, section 3.5.
+                        LOG.debug("Asked to slow down, polling every " + interval + " seconds from now on.");
+                        schedule();
+                        break;
+                    default: // authorization_declined, expired_token or bad_verification_code
+                        result.completeExceptionally(new IOException("Authentication failed: " + error));
+                }
+            }, executor);
         }
     }
 
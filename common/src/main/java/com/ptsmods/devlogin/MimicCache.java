@@ -0,0 +1,386 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Caches the results of the lookups done when mimicking a player on disk, so mimicking the same players over
+ * and over does not require any requests. Entries older than their time to live are still used, but are refreshed
+ * in the background. Once an entry gets too old or there are too many, it is removed, least recently used first.
+ */
+public class MimicCache {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-MimicCache");
+    private static final SharedJsonFile<Data> file = new SharedJsonFile<>(DevLogin.getDirectory().resolve("mimic-cache.json"), Data.class, Data::new);
+    private static final long ID_TTL = TimeUnit.DAYS.toMillis(1), PROFILE_TTL = TimeUnit.HOURS.toMillis(1), MAX_AGE = TimeUnit.DAYS.toMillis(30);
+    private static final long USED_INTERVAL = TimeUnit.HOURS.toMillis(1); // How outdated the time an entry was last used at may get.
+    private static final long CLAIM_TIMEOUT = TimeUnit.SECONDS.toMillis(30), CLAIM_POLL_INTERVAL = 100;
+    private static final int MAX_ENTRIES = 256;
+
+    /**
+     * Gets the undashed UUID of a player.
+     * @param name The name of the player.
+     * @param fetcher Fetches the UUID if it's not cached or has to be refreshed.
+     * @return The undashed UUID of the player or {@code null} if the fetcher returned {@code null}.
+     * @throws IOException If the UUID was not cached and could not be fetched.
+     */
+    public static String getId(String name, Fetcher<String> fetcher) throws IOException {
+        return get(data -> data.ids, name.toLowerCase(Locale.ROOT), ID_TTL, fetcher);
+    }
+
+    /**
+     * Gets the name and properties of a player.
+     * @param id The undashed UUID of the player.
+     * @param fetcher Fetches the profile if it's not cached or has to be refreshed.
+     * @return The profile of the player or {@code null} if the fetcher returned {@code null}.
+     * @throws IOException If the profile was not cached and could not be fetched.
+     */
+    public static Profile getProfile(String id, Fetcher<Profile> fetcher) throws IOException {
+        return get(data -> data.profiles, id, PROFILE_TTL, fetcher);
+    }
+
+    /**
+     * Same as {@link #getProfile(String, Fetcher)}, but only if the profile is cached, so it never waits for the fetcher.
+     * @param id The undashed UUID of the player.
+     * @param fetcher Refreshes the profile in the background if it has to be refreshed.
+     * @return The cached profile of the player or {@code null} if it's not cached.
+     */
+    public static Profile getCachedProfile(String id, Fetcher<Profile> fetcher) {
+        return getCached(data -> data.profiles, id, PROFILE_TTL, fetcher);
+    }
+
+    /**
+     * Gets the undashed UUIDs of many players at once.
+     * @param names The names of the players.
+     * @param fetcher Fetches the UUIDs of all players whose UUID is not cached or has to be refreshed.
+     * @return The lower-case names of all players whose UUID could be found mapped to their undashed UUID.
+     * @throws IOException If the fetcher failed and there were no stale values to fall back to.
+     * @see #getAll(String, Function, Collection, long, BulkFetcher)
+     */
+    public static Map<String, String> getIds(Collection<String> names, BulkFetcher<String> fetcher) throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (String name : names) keys.add(name.toLowerCase(Locale.ROOT));
+        return getAll("id", data -> data.ids, keys, ID_TTL, fetcher);
+    }
+
+    /**
+     * Gets the name and properties of many players at once.
+     * @param ids The undashed UUIDs of the players.
+     * @param fetcher Fetches the profiles of all players whose profile is not cached or has to be refreshed.
+     * @return The undashed UUIDs of all players whose profile could be found mapped to their profile.
+     * @throws IOException If the fetcher failed and there were no stale values to fall back to.
+     * @see #getAll(String, Function, Collection, long, BulkFetcher)
+     */
+    public static Map<String, Profile> getProfiles(Collection<String> ids, BulkFetcher<Profile> fetcher) throws IOException {
+        return getAll("profile", data -> data.profiles, ids, PROFILE_TTL, fetcher);
+    }
+
+    /**
+     * Gets many values at once. If any of them are not cached or have to be refreshed, they are fetched all at once.
+     * The cache is only locked to claim the missing values and to store them once fetched, never while fetching.
+     * When many clients are started at the same time with the same players, only the client that claimed a value fetches it,
+     * the others wait for it to show up in the cache, but no longer than {@link #CLAIM_TIMEOUT}, after which they fetch it themselves.
+     * Values that could not be fetched, because the fetcher failed or left them out, fall back to their stale value if there is one.
+     * @param kind The kind of values, to tell the claims of the sections apart.
+     * @throws IOException If the fetcher failed and there were no stale values to fall back to.
+     */
+    private static <T> Map<String, T> getAll(String kind, Function<Data, Map<String, Entry<T>>> section, Collection<String> keys, long ttl,
+                                             BulkFetcher<T> fetcher) throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, T> result = new LinkedHashMap<>();
+        Map<String, Entry<T>> cached = section.apply(file.read());
+        if (collectFresh(cached, keys, ttl, now, result)) {
+            markUsed(section, cached, keys, now);
+            return result;
+        }
+
+        Set<String> claimed = new LinkedHashSet<>(), waiting = new LinkedHashSet<>();
+        Map<String, T> stale = new HashMap<>();
+        file.update(data -> {
+            result.clear();
+            boolean fresh = collectFresh(section.apply(data), keys, ttl, now, result);
+            for (String key : result.keySet()) section.apply(data).get(key).used = now; // Written anyway, so no need to do it lazily.
+            if (fresh) return data; // Another client fetched them while we were waiting.
+
+            for (String key : keys) {
+                if (result.containsKey(key)) continue;
+
+                Entry<T> entry = section.apply(data).get(key);
+                if (entry != null && now - entry.fetched < MAX_AGE) stale.put(key, entry.value);
+
+                Long claim = data.claims.get(kind + ":" + key);
+                if (claim != null && claim > now) waiting.add(key);
+                else {
+                    data.claims.put(kind + ":" + key, now + CLAIM_TIMEOUT);
+                    claimed.add(key);
+                }
+            }
+
+            return data;
+        });
+
+        Map<String, T> fetched = new HashMap<>();
+        IOException failure = null;
+        try {
+            if (!claimed.isEmpty()) fetched.putAll(fetcher.fetch(claimed));
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            store(kind, section, claimed, fetched, now);
+        }
+
+        // Wait for the values other clients claimed. Once their claim is gone, they either stored it or found there to be none.
+        long deadline = now + CLAIM_TIMEOUT;
+        while (!waiting.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(CLAIM_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for another client to fetch " + waiting + ".", e);
+            }
+
+            Data data = file.read();
+            Map<String, Entry<T>> entries = section.apply(data);
+            for (Iterator<String> it = waiting.iterator(); it.hasNext(); ) {
+                String key = it.next();
+                Entry<T> entry = entries.get(key);
+                if (data.claims.containsKey(kind + ":" + key) && (entry == null || now - entry.fetched >= ttl)) continue;
+
+                // If fetching it failed, the stale value is still better than none.
+                if (entry != null) result.put(key, entry.value);
+                it.remove();
+            }
+        }
+
+        if (!waiting.isEmpty()) {
+            LOG.warn("Other clients took too long to fetch " + waiting + ", fetching them instead.");
+            try {
+                Map<String, T> late = fetcher.fetch(waiting);
+                store(kind, section, Collections.emptySet(), late, now);
+                fetched.putAll(late);
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+
+        boolean fellBack = false;
+        for (String key : keys)
+            if (fetched.containsKey(key)) result.put(key, fetched.get(key));
+            else if (!result.containsKey(key) && stale.containsKey(key)) {
+                result.put(key, stale.get(key));
+                fellBack = true;
+            }
+
+        if (failure != null) {
+            if (!fellBack) throw failure;
+            LOG.warn("Could not fetch all " + kind + "s, using stale ones where possible.", failure);
+        }
+        return result;
+    }
+
+    /**
+     * Stores fetched values and releases the claims on them, unless another client stored a value fetched later in the meantime.
+     */
+    private static <T> void store(String kind, Function<Data, Map<String, Entry<T>>> section, Set<String> claimed, Map<String, T> fetched, long now) throws IOException {
+        if (claimed.isEmpty() && fetched.isEmpty()) return;
+
+        file.update(data -> {
+            Map<String, Entry<T>> entries = section.apply(data);
+            fetched.forEach((key, value) -> {
+                Entry<T> entry = entries.get(key);
+                if (entry == null || entry.fetched < now) entries.put(key, new Entry<>(value, now, now));
+            });
+
+            for (String key : claimed) data.claims.remove(kind + ":" + key);
+            data.claims.values().removeIf(claim -> claim <= now); // Left behind by clients that died while fetching.
+            evict(entries, now);
+            return data;
+        });
+    }
+
+    /**
+     * Puts the values of all given keys that are cached and don't have to be refreshed in the given map.
+     * Doesn't mark them as used, see {@link #markUsed(Function, Map, Collection, long)} for that.
+     * @return Whether all keys had such a value.
+     */
+    private static <T> boolean collectFresh(Map<String, Entry<T>> entries, Collection<String> keys, long ttl, long now, Map<String, T> result) {
+        for (String key : keys) {
+            Entry<T> entry = entries.get(key);
+            if (entry != null && now - entry.fetched < ttl) result.put(key, entry.value);
+        }
+
+        return result.size() == new HashSet<>(keys).size();
+    }
+
+    /**
+     * Marks cached entries as used in the background, all at once and only if they were last marked more than {@link #USED_INTERVAL} ago.
+     * Eviction only needs to know roughly when an entry was last used, so most hits don't have to write the cache at all.
+     * @param entries The entries as read, used to tell which ones have to be marked.
+     */
+    private static <T> void markUsed(Function<Data, Map<String, Entry<T>>> section, Map<String, Entry<T>> entries, Collection<String> keys, long now) {
+        Set<String> outdated = new HashSet<>();
+        for (String key : keys) {
+            Entry<T> entry = entries.get(key);
+            if (entry != null && now - entry.used >= USED_INTERVAL) outdated.add(key);
+        }
+        if (outdated.isEmpty()) return;
+
+        DevLogin.getScheduler().execute(() -> {
+            try {
+                file.update(data -> {
+                    Map<String, Entry<T>> current = section.apply(data);
+                    for (String key : outdated) {
+                        Entry<T> entry = current.get(key);
+                        if (entry != null) entry.used = Math.max(entry.used, now);
+                    }
+
+                    return data;
+                });
+            } catch (IOException e) {
+                LOG.error("Could not update mimic cache.", e);
+            }
+        });
+    }
+
+    private static <T> T get(Function<Data, Map<String, Entry<T>>> section, String key, long ttl, Fetcher<T> fetcher) throws IOException {
+        T cached = getCached(section, key, ttl, fetcher);
+        if (cached != null) return cached;
+
+        T value = fetcher.fetch();
+        if (value != null) update(section, key, value, System.currentTimeMillis());
+        return value;
+    }
+
+    /**
+     * Gets a cached value, refreshing it in the background if it's stale.
+     * @return The cached value or {@code null} if it's not cached or too old to be used.
+     */
+    private static <T> T getCached(Function<Data, Map<String, Entry<T>>> section, String key, long ttl, Fetcher<T> fetcher) {
+        long now = System.currentTimeMillis();
+        Map<String, Entry<T>> entries = section.apply(file.read());
+        Entry<T> entry = entries.get(key);
+
+        if (entry != null && now - entry.fetched < MAX_AGE) {
+            if (now - entry.fetched < ttl) markUsed(section, entries, Collections.singleton(key), now);
+            else {
+                LOG.debug("Cached entry for " + key + " is stale, refreshing it in the background.");
+                // Fetching waits for requests, which must not hold up the single thread of the scheduler, so it's done on the executor logins use.
+                CompletableFuture.runAsync(() -> {
+                    try {
+                        T value = fetcher.fetch();
+                        if (value != null) update(section, key, value, now);
+                    } catch (IOException e) {
+                        LOG.warn("Could not refresh cached entry for " + key + ".", e);
+                    }
+                }, MSA.getDefaultExecutor());
+            }
+
+            return entry.value;
+        }
+
+        return null;
+    }
+
+    /**
+     * Stores a value in the cache.
+     * @param section The section of the cache to store the value in.
+     * @param key The key to store the value under.
+     * @param value The value to store.
+     * @param now The current time.
+     */
+    private static <T> void update(Function<Data, Map<String, Entry<T>>> section, String key, T value, long now) {
+        try {
+            file.update(data -> {
+                Map<String, Entry<T>> entries = section.apply(data);
+                entries.put(key, new Entry<>(value, now, now));
+                evict(entries, now);
+                return data;
+            });
+        } catch (IOException e) {
+            LOG.error("Could not update mimic cache.", e);
+        }
+    }
+
+    /**
+     * Evicts entries that are too old and then the least recently used ones until there are no more than {@link #MAX_ENTRIES}.
+     */
+    private static <T> void evict(Map<String, Entry<T>> entries, long now) {
+        entries.values().removeIf(e -> now - e.fetched >= MAX_AGE);
+        while (entries.size() > MAX_ENTRIES)
+            entries.entrySet().stream()
+                    .min(Comparator.comparingLong(e -> e.getValue().used))
+                    .ifPresent(e -> entries.remove(e.getKey()));
+    }
+
+    /**
+     * Fetches a value if it is not cached or if it has to be refreshed.
+     * @param <T> The type of the value.
+     */
+    @FunctionalInterface
+    public interface Fetcher<T> {
+        T fetch() throws IOException;
+    }
+
+    /**
+     * Fetches many values at once.
+     * @param <T> The type of the values.
+     */
+    @FunctionalInterface
+    public interface BulkFetcher<T> {
+        /**
+         * @param keys The keys to fetch the values of.
+         * @return The keys that values were found for mapped to their value.
+         */
+        Map<String, T> fetch(Collection<String> keys) throws IOException;
+    }
+
+    /**
+     * The name and profile properties of a player.
+     */
+    public static class Profile {
+        private final String name, properties;
+
+        public Profile(String name, String properties) {
+            this.name = name;
+            this.properties = properties;
+        }
+
+        /**
+         * @return The name of the player.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The signed profile properties of the player as JSON.
+         */
+        public String getProperties() {
+            return properties;
+        }
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private final long fetched;
+        private long used;
+
+        private Entry(T value, long fetched, long used) {
+            this.value = value;
+            this.fetched = fetched;
+            this.used = used;
+        }
+    }
+
+    private static class Data {
+        private Map<String, Entry<String>> ids = new LinkedHashMap<>();
+        private Map<String, Entry<Profile>> profiles = new LinkedHashMap<>();
+        private Map<String, Long> claims = new HashMap<>(); // Kind and key of values being fetched mapped to when the claim expires.
+    }
+}
@@ -0,0 +1,191 @@
+package com.ptsmods.devlogin;
+
+import com.google.common.collect.Lists;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolves many players to mimic at once, e.g. for a swarm of clients that each mimic a different player.
+ * Names are looked up in batches using Mojang's bulk endpoint and session profiles are fetched concurrently.
+ * Everything is stored in the {@link MimicCache}, so each client can pick its own player without making any requests.
+ */
+public class MimicResolver {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-MimicResolver");
+    private static final int BATCH_SIZE = 10; // The maximum amount of names the bulk endpoint accepts at once.
+    // Session profiles fetched at once. Must not exceed the connections per host of AhcHttpTransport's clients, which fail any requests
+    // beyond that, and stays below the connections the JDK keeps alive per host (http.maxConnections, 5 by default), so they're all reused.
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(30); // For all requests of a lookup or fetch together.
+
+    /**
+     * Resolves the profiles of all given players.
+     * @param proxy The proxy to do all requests with
+     * @param players The names or UUIDs of the players to resolve
+     * @return The profiles of the given players in the same order, profiles of players that could not be found are {@code null}.
+     * @throws IOException If all requests of a lookup or fetch failed and there was nothing cached to fall back to.
+     */
+    public static List<AuthenticationProfile> resolve(Proxy proxy, List<String> players) throws IOException {
+        long start = System.nanoTime();
+        Map<String, String> ids = new HashMap<>(); // Player as passed -> undashed UUID
+        List<String> names = new ArrayList<>();
+        for (String player : players)
+            try {
+                ids.put(player, UndashedUuid.toString(UndashedUuid.fromString(player.replace("-", ""))));
+            } catch (IllegalArgumentException e) {
+                names.add(player);
+            }
+
+        Map<String, String> nameIds = Collections.emptyMap();
+        if (!names.isEmpty())
+            try (Timings.Step step = Timings.step("mimicIds")) {
+                nameIds = MimicCache.getIds(names, missing -> lookupIds(proxy, missing));
+                step.succeed();
+            }
+        for (String name : names) ids.put(name, nameIds.get(name.toLowerCase(Locale.ROOT)));
+
+        Set<String> toResolve = new LinkedHashSet<>(ids.values());
+        toResolve.remove(null);
+        Map<String, MimicCache.Profile> profiles;
+        try (Timings.Step step = Timings.step("mimicProfiles")) {
+            profiles = MimicCache.getProfiles(toResolve, missing -> fetchProfiles(proxy, missing));
+            step.succeed();
+        }
+
+        List<AuthenticationProfile> result = new ArrayList<>();
+        for (String player : players) {
+            String id = ids.get(player);
+            MimicCache.Profile profile = id == null ? null : profiles.get(id);
+            if (profile == null) LOG.warn("Could not find player " + player + ".");
+
+            result.add(profile == null ? null : new AuthenticationProfile(profile.getName(), UndashedUuid.fromString(id), null, null, profile.getProperties()));
+        }
+
+        LOG.info(String.format("Resolved %d players in %d ms.", players.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return result;
+    }
+
+    /**
+     * Looks up the UUIDs of the given names using the bulk endpoint.
+     * A failed batch only loses its own names, for which the {@link MimicCache} falls back to stale UUIDs.
+     * @return The lower-case names that were found mapped to their undashed UUID.
+     * @throws IOException If every batch failed.
+     */
+    private static Map<String, String> lookupIds(Proxy proxy, Collection<String> names) throws IOException {
+        Connectivity.check(proxy);
+        HttpTransport transport = Http.getTransport(proxy);
+        List<CompletableFuture<HttpTransport.Response>> batches = new ArrayList<>();
+        String url = Endpoint.MOJANG_API.resolve("/profiles/minecraft");
+        for (List<String> batch : Lists.partition(new ArrayList<>(names), BATCH_SIZE))
+            batches.add(Resilience.execute(transport, new HttpTransport.Request("POST", url, Json.GSON.toJson(batch), Collections.singletonMap("Content-Type", "application/json")),
+                    Timings.current(), true) // Only looks up, so safe to repeat.
+                    .exceptionally(t -> {
+                        LOG.warn("Could not look up " + batch + ".", t);
+                        return null;
+                    }));
+
+        Map<String, String> ids = new HashMap<>();
+        int failed = 0;
+        for (HttpTransport.Response resp : await(batches)) {
+            if (resp == null) {
+                failed++;
+                continue;
+            }
+            if (resp.getStatusCode() != 200) {
+                LOG.warn("Bulk lookup failed with status code " + resp.getStatusCode() + ".");
+                failed++;
+                continue;
+            }
+
+            List<Responses.Profile> found = Json.read(resp, Responses.PROFILES);
+            if (found != null)
+                for (Responses.Profile profile : found)
+                    if (profile != null && profile.isOk()) ids.put(profile.name.toLowerCase(Locale.ROOT), profile.id);
+        }
+
+        if (failed == batches.size()) throw new IOException("Could not look up any of the names.");
+        LOG.debug(String.format("Looked up %d names using %d requests.", names.size(), batches.size()));
+        return ids;
+    }
+
+    /**
+     * Fetches the session profiles of the given players, a couple at a time.
+     * A failed request only loses its own profile, for which the {@link MimicCache} falls back to the stale profile.
+     * @return The undashed UUIDs that were found mapped to their profile.
+     * @throws IOException If every request failed.
+     */
+    private static Map<String, MimicCache.Profile> fetchProfiles(Proxy proxy, Collection<String> ids) throws IOException {
+        Connectivity.check(proxy);
+        HttpTransport transport = Http.getTransport(proxy);
+        List<String> idList = new ArrayList<>(ids);
+        Timings.Step step = Timings.current(); // The lanes continue on the transport's threads.
+
+        // Every lane fetches its profiles one after another, so there are never more
+        // requests in flight than there are lanes.
+        List<CompletableFuture<List<HttpTransport.Response>>> lanes = new ArrayList<>();
+        for (int lane = 0; lane < Math.min(MAX_CONCURRENT_REQUESTS, idList.size()); lane++) {
+            CompletableFuture<List<HttpTransport.Response>> future = CompletableFuture.completedFuture(new ArrayList<>());
+            for (int i = lane; i < idList.size(); i += MAX_CONCURRENT_REQUESTS) {
+                String id = idList.get(i), url = Endpoint.SESSION_SERVER.resolve("/session/minecraft/profile/" + id + "?unsigned=false");
+                future = future.thenCompose(responses -> Resilience.execute(transport, HttpTransport.Request.get(url), step, true)
+                        .handle((resp, t) -> {
+                            if (t != null) LOG.warn("Could not fetch profile of " + id + ".", t);
+                            responses.add(resp); // null if it failed, so the rest of the lane goes on.
+                            return responses;
+                        }));
+            }
+            lanes.add(future);
+        }
+
+        Map<String, MimicCache.Profile> profiles = new HashMap<>();
+        int failed = 0;
+        for (List<HttpTransport.Response> responses : await(lanes))
+            for (HttpTransport.Response resp : responses) {
+                if (resp == null) {
+                    failed++;
+                    continue;
+                }
+                if (resp.getStatusCode() == 204) continue; // There is no such player.
+                if (resp.getStatusCode() != 200) {
+                    LOG.warn("Could not fetch profile, status code " + resp.getStatusCode() + ".");
+                    failed++;
+                    continue;
+                }
+
+                Responses.SessionProfile data = Json.read(resp, Responses.SessionProfile.class);
+                if (data == null || data.id == null || data.name == null) {
+                    LOG.warn("Could not fetch profile, invalid response.");
+                    failed++;
+                    continue;
+                }
+                profiles.put(data.id, new MimicCache.Profile(data.name, data.properties));
+            }
+
+        if (failed == idList.size()) throw new IOException("Could not fetch any of the profiles.");
+        return profiles;
+    }
+
+    /**
+     * Waits for all given futures at once, so they share a single deadline.
+     * @return The results of the futures, in the same order.
+     * @throws IOException If any of the futures failed or they weren't all done in time.
+     */
+    private static <T> List<T> await(List<CompletableFuture<T>> futures) throws IOException {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new IOException("Could not resolve players", e);
+        }
+
+        List<T> results = new ArrayList<>();
+        for (CompletableFuture<T> future : futures) results.add(future.join());
+        return results;
+    }
+}
@@ -0,0 +1,117 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows messages on a page in the user's browser, served by a {@link LoopbackServer}.
+ * The browser is opened the first time a message is shown, after which the page refreshes by itself to show new messages.
+ * Every message on it can be closed, which is the same as closing a dialog. Closing takes a POST request with a random token
+ * that is only on the page, so other websites can't close messages, and with that cancel the login, by sending requests to the server.
+ */
+class PageLoginUi implements LoginUi {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-MSA");
+    private static PageLoginUi instance;
+    private final List<Page> pages = new ArrayList<>(); // Newest last
+    private LoopbackServer server;
+    private int nextId;
+
+    private PageLoginUi() {}
+
+    static synchronized PageLoginUi get() {
+        if (instance == null) instance = new PageLoginUi();
+        return instance;
+    }
+
+    @Override
+    public Handle show(String title, String message, Runnable onClose) {
+        Page page;
+        boolean started = false;
+        synchronized (this) {
+            if (server == null)
+                try {
+                    server = new LoopbackServer(0, this::handle);
+                    started = true;
+                } catch (IOException e) {
+                    LOG.error("Could not start the login page, logging the message instead.", e);
+                    return ConsoleLoginUi.INSTANCE.show(title, message, onClose);
+                }
+
+            page = new Page(nextId++, MSA.randomString(16), title, message, onClose);
+            pages.add(page);
+        }
+
+        if (started) {
+            String url = server.getUrl() + "/";
+            if (Browser.open(url)) LOG.info("Opened " + url + " in your browser.");
+            else LOG.info("Please open " + url + " in your browser.");
+        }
+
+        return () -> remove(page.id, page.token);
+    }
+
+    private synchronized Page remove(int id, String token) {
+        for (int i = 0; i < pages.size(); i++)
+            if (pages.get(i).id == id) return pages.get(i).token.equals(token) ? pages.remove(i) : null;
+        return null;
+    }
+
+    private LoopbackServer.Response handle(String method, URI uri) {
+        switch (uri.getPath()) {
+            case "/":
+                return LoopbackServer.Response.html(render());
+            case "/close":
+                if (!method.equals("POST")) return LoopbackServer.Response.text(405, "Method Not Allowed");
+
+                Map<String, String> params = LoopbackServer.parseQuery(uri.getRawQuery());
+                Page page;
+                try {
+                    page = params.get("id") == null ? null : remove(Integer.parseInt(params.get("id")), params.get("token"));
+                } catch (NumberFormatException e) {
+                    page = null;
+                }
+
+                if (page != null && page.onClose != null) DevLogin.getScheduler().execute(page.onClose); // Not on the server's thread.
+                return LoopbackServer.Response.redirect("/");
+            default:
+                return null;
+        }
+    }
+
+    private synchronized String render() {
+        StringBuilder sb = new StringBuilder("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><meta http-equiv=\"refresh\" content=\"2\">" +
+                "<base target=\"_blank\"><title>DevLogin</title><style>body{font-family:sans-serif;max-width:40em;margin:2em auto}section{border:1px solid #ccc;" +
+                "border-radius:4px;padding:0 1em 1em;margin-bottom:1em}</style></head><body>");
+        if (pages.isEmpty()) sb.append("<p>Nothing to do here anymore, you can close this page.</p>");
+
+        for (int i = pages.size() - 1; i >= 0; i--) {
+            Page page = pages.get(i);
+            // The message is ours and may contain HTML, the title is shown as is.
+            sb.append("<section><h3>").append(LoopbackServer.escape(page.title)).append("</h3><p>").append(page.message)
+                    .append("</p><form method=\"post\" target=\"_self\" action=\"/close?id=").append(page.id).append("&amp;token=").append(page.token)
+                    .append("\"><button>Close</button></form></section>");
+        }
+
+        return sb.append("</body></html>").toString();
+    }
+
+    private static class Page {
+        private final int id;
+        private final String token, title, message;
+        private final Runnable onClose;
+
+        private Page(int id, String token, String title, String message, Runnable onClose) {
+            this.id = id;
+            this.token = token;
+            this.title = title;
+            this.message = message;
+            this.onClose = onClose;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the requests to each {@link Endpoint} under its rate limit, across every process on this machine that uses DevLogin,
+ * so starting many clients at once doesn't get them all rate limited.
+ * <p>
+ * Each endpoint has a token bucket that allows a burst of requests, after which requests are spread out evenly.
+ * Requests that would exceed the limit are not refused, but reserve the next free moment and wait for it,
+ * so they're sent in the order they arrived in, no matter which process they're from.
+ * The buckets are kept in {@code ratelimits.bin} in the DevLogin directory, which every process maps into memory
+ * and locks the part of that belongs to an endpoint while it reserves a moment.
+ * <p>
+ * When a request is rate limited anyway, nothing is sent to that endpoint until the time the server asked us to wait
+ * with {@code Retry-After} has passed, and requests are spread out twice as far from then on, slowly going back to normal
+ * as requests succeed again. That's shared between the processes too.
+ * <p>
+ * Configured with the following system properties:
+ * <ul>
+ *     <li>{@code devlogin.rateLimit.<endpoint>}: the amount of requests per second to allow to an endpoint, e.g. {@code devlogin.rateLimit.mojangApi}, 0 disables it.</li>
+ *     <li>{@code devlogin.rateBurst.<endpoint>}: the amount of requests that may be sent to an endpoint at once.</li>
+ *     <li>{@code devlogin.rateLimits}: set to {@code false} to not limit any requests.</li>
+ * </ul>
+ */
+class RateLimiter {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-RateLimiter");
+    private static final int MAGIC = 0x444c524c, VERSION = 1; // DLRL
+    private static final int HEADER_SIZE = 64, SLOT_SIZE = 64; // Slots are a cache line apart.
+    private static final int TAT = 0, BLOCKED_UNTIL = 8, LEARNED_INTERVAL = 16; // Offsets within a slot, all longs in microseconds.
+    private static final long MAX_INTERVAL = TimeUnit.SECONDS.toMicros(60);
+    private static ByteBuffer buffer;
+    private static FileChannel channel;
+
+    /**
+     * Reserves the next moment a request may be sent to the endpoint of the given URL.
+     * @param url The URL the request is made to.
+     * @param maxWait The longest time in milliseconds the request may wait.
+     * @return The time in milliseconds to wait before sending the request, or -1 if that would be longer than the given
+     * maximum, in which case nothing is reserved.
+     */
+    static long reserve(String url, long maxWait) {
+        Endpoint endpoint = getEndpoint(url);
+        if (endpoint == null) return 0;
+
+        double rate = getRate(endpoint);
+        if (rate <= 0) return 0;
+
+        long interval = (long) (TimeUnit.SECONDS.toMicros(1) / rate);
+        long burst = Math.max(1, Long.getLong("devlogin.rateBurst." + endpoint.getName(), getDefaultBurst(endpoint)));
+        return withSlot(endpoint, (buffer, slot) -> {
+            long now = now();
+            long tat = buffer.getLong(slot + TAT), learned = buffer.getLong(slot + LEARNED_INTERVAL);
+            long spacing = Math.max(interval, learned);
+
+            // Generic cell rate algorithm: a request may be sent once it's no more than the burst ahead of the schedule.
+            long at = Math.max(now, Math.max(tat - (burst - 1) * spacing, buffer.getLong(slot + BLOCKED_UNTIL)));
+            long wait = TimeUnit.MICROSECONDS.toMillis(at - now + 999);
+            if (wait > maxWait) return -1L;
+
+            buffer.putLong(slot + TAT, Math.max(tat, at) + spacing);
+            return wait;
+        }, 0L);
+    }
+
+    /**
+     * Learns from a request that was rate limited.
+     * @param url The URL the request was made to.
+     * @param retryAfter The time in milliseconds the server asked us to wait or -1 if it didn't say.
+     */
+    static void limited(String url, long retryAfter) {
+        Endpoint endpoint = getEndpoint(url);
+        if (endpoint == null || getRate(endpoint) <= 0) return;
+
+        long interval = (long) (TimeUnit.SECONDS.toMicros(1) / getRate(endpoint));
+        withSlot(endpoint, (buffer, slot) -> {
+            long now = now();
+            long learned = Math.min(MAX_INTERVAL, Math.max(interval, buffer.getLong(slot + LEARNED_INTERVAL)) * 2);
+            long blockedUntil = Math.max(buffer.getLong(slot + BLOCKED_UNTIL), now + TimeUnit.MILLISECONDS.toMicros(Math.max(retryAfter, 0)));
+
+            buffer.putLong(slot + LEARNED_INTERVAL, learned);
+            buffer.putLong(slot + BLOCKED_UNTIL, blockedUntil);
+            // Empty the bucket, so there's no burst of requests the moment we're allowed to send them again.
+            long burst = Math.max(1, Long.getLong("devlogin.rateBurst." + endpoint.getName(), getDefaultBurst(endpoint)));
+            buffer.putLong(slot + TAT, Math.max(buffer.getLong(slot + TAT), blockedUntil + (burst - 1) * learned));
+            return null;
+        }, null);
+        LOG.info("Rate limited by " + endpoint.getName() + ", slowing down" + (retryAfter > 0 ? " and waiting " + retryAfter + " ms." : "."));
+    }
+
+    /**
+     * Lets the limit of the endpoint of the given URL recover after it was slowed down because of rate limiting.
+     * @param url The URL a request was successfully made to.
+     */
+    static void succeeded(String url) {
+        Endpoint endpoint = getEndpoint(url);
+        if (endpoint == null || getRate(endpoint) <= 0) return;
+
+        ByteBuffer buffer = getBuffer();
+        if (buffer == null || buffer.getLong(getSlot(endpoint) + LEARNED_INTERVAL) == 0) return; // Nothing to recover from, no need to lock anything.
+
+        long interval = (long) (TimeUnit.SECONDS.toMicros(1) / getRate(endpoint));
+        withSlot(endpoint, (buf, slot) -> {
+            long learned = buf.getLong(slot + LEARNED_INTERVAL) * 19 / 20;
+            buf.putLong(slot + LEARNED_INTERVAL, learned <= interval ? 0 : learned);
+            return null;
+        }, null);
+    }
+
+    private static <T> T withSlot(Endpoint endpoint, SlotOperation<T> operation, T fallback) {
+        // FileLocks are held by the entire JVM, so threads in this JVM have to be kept apart separately.
+        synchronized (RateLimiter.class) {
+            ByteBuffer buffer = getBuffer();
+            if (buffer == null) return fallback;
+
+            int slot = getSlot(endpoint);
+            try (FileLock ignored = channel == null ? null : channel.lock(slot, SLOT_SIZE, false)) {
+                return operation.apply(buffer, slot);
+            } catch (IOException e) {
+                LOG.warn("Could not lock the rate limit of " + endpoint.getName() + ".", e);
+                return fallback;
+            }
+        }
+    }
+
+    /**
+     * @return The buffer the buckets are stored in, which is mapped to the shared file if possible, or {@code null} if rate limiting is disabled.
+     */
+    private static synchronized ByteBuffer getBuffer() {
+        if (!Boolean.parseBoolean(System.getProperty("devlogin.rateLimits", "true"))) return null;
+        if (buffer != null) return buffer;
+
+        int size = HEADER_SIZE + Endpoint.values().length * SLOT_SIZE;
+        Path file = DevLogin.getDirectory().resolve("ratelimits.bin");
+        try {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try (FileLock ignored = channel.lock()) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // Grows the file if needed.
+                if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                    for (int i = 0; i < size; i += 8) mapped.putLong(i, 0);
+                    mapped.putInt(0, MAGIC);
+                    mapped.putInt(4, VERSION);
+                }
+                buffer = mapped;
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not open the shared rate limits, only requests made by this process are limited.", e);
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException ignored) {}
+            channel = null;
+            buffer = ByteBuffer.allocate(size);
+        }
+
+        return buffer;
+    }
+
+    private static int getSlot(Endpoint endpoint) {
+        return HEADER_SIZE + endpoint.ordinal() * SLOT_SIZE;
+    }
+
+    /**
+     * @return The endpoint the given URL belongs to or {@code null} if it's not one of them.
+     */
+    private static Endpoint getEndpoint(String url) {
+        for (Endpoint endpoint : Endpoint.values())
+            if (url.startsWith(endpoint.getUrl() + "/")) return endpoint;
+        return null;
+    }
+
+    /**
+     * @return The amount of requests per second allowed to the given endpoint.
+     */
+    private static double getRate(Endpoint endpoint) {
+        String rate = System.getProperty("devlogin.rateLimit." + endpoint.getName());
+        try {
+            if (rate != null) return Double.parseDouble(rate);
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid rate limit " + rate + " for " + endpoint.getName() + ".");
+        }
+
+        // Mojang's API allows 600 requests per 10 minutes. The limits of the others aren't known,
+        // so they're generous and mostly left to learning from being rate limited.
+        return endpoint == Endpoint.MOJANG_API ? 1 : 10;
+    }
+
+    private static long getDefaultBurst(Endpoint endpoint) {
+        return endpoint == Endpoint.MOJANG_API ? 60 : 50;
+    }
+
+    /**
+     * @return The current time in microseconds since the epoch, which unlike {@link System#nanoTime()} is the same in every process.
+     */
+    private static long now() {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+
+    @FunctionalInterface
+    private interface SlotOperation<T> {
+        /**
+         * @param buffer The buffer the buckets are stored in.
+         * @param slot The offset of the bucket of the endpoint in the buffer.
+         */
+        T apply(ByteBuffer buffer, int slot) throws IOException;
+    }
+}
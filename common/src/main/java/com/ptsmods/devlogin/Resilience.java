@@ -0,0 +1,318 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Makes requests resilient to the transient failures the services DevLogin uses are known for.
+ * <p>
+ * Requests that are safe to repeat are retried on connection errors, 5xx responses and 429 responses with jittered
+ * exponential backoff, or after the time the server asked for with {@code Retry-After}. If such a request takes longer
+ * than most recent requests to the same host did, a second, hedged request is sent and whichever answers first wins.
+ * Hosts that keep failing are skipped for a while, so a login fails fast instead of waiting for every request to time out.
+ * Every attempt waits for its turn if sending it would exceed the rate limit of its endpoint (see {@link RateLimiter}).
+ * If there turns out to be no network connection at all (see {@link Connectivity}), requests fail right away.
+ * <p>
+ * Configured with the following system properties:
+ * <ul>
+ *     <li>{@code devlogin.retries}: the amount of times a request is retried, 2 by default.</li>
+ *     <li>{@code devlogin.hedgePercentile}: the percentile of recent latencies after which a request is hedged, 95 by default, 0 disables hedging.</li>
+ *     <li>{@code devlogin.hedgeDelay}: the time in milliseconds after which a request is hedged while too few latencies are known, 2000 by default.</li>
+ *     <li>{@code devlogin.circuitThreshold}: the amount of failures in a row after which a host is skipped, 3 by default.</li>
+ *     <li>{@code devlogin.circuitCooldown}: the time in milliseconds a host is skipped for, 30000 by default.</li>
+ *     <li>{@code devlogin.timeout}: the time in milliseconds a step may spend on a request, including retries, 10000 by default.
+ *     Can be set per step with e.g. {@code devlogin.timeout.xsts}.</li>
+ * </ul>
+ */
+public class Resilience {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-Resilience");
+    private static final long BACKOFF_BASE = 250, BACKOFF_CAP = 4000, MAX_RETRY_AFTER = 30000;
+    private static final int MIN_SAMPLES = 8;
+    private static final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Sends a request, retrying and hedging it if it's safe to repeat.
+     * @param transport The transport to send the request with, usually {@link Http#getTransport(java.net.Proxy)}.
+     * @param request The request to send
+     * @param step The step the request is part of or {@code null} if it is not part of any.
+     * @param idempotent Whether the request is safe to repeat. If not, it is only ever sent once.
+     * @return A future that completes with the first response that should not be retried, or the last one if retries ran out.
+     * Completes exceptionally with a {@link TimeoutException} if the step ran out of time
+     * or with a {@link CircuitOpenException} if the host is being skipped, or with a {@link Connectivity.OfflineException} if there is no network connection.
+     */
+    static CompletableFuture<HttpTransport.Response> execute(HttpTransport transport, HttpTransport.Request request, Timings.Step step, boolean idempotent) {
+        Call call = new Call(transport, request, step, idempotent);
+        // Without a network connection, sending may take until the request times out, so if the check is still running, don't wait for that.
+        CompletableFuture<Boolean> check = Connectivity.getCheck();
+        if (check != null && !check.isDone()) check.thenAccept(reachable -> {
+            if (!reachable) call.result.completeExceptionally(new Connectivity.OfflineException(request.getUrl()));
+        });
+
+        call.attempt(false);
+        return call.result;
+    }
+
+    /**
+     * @param step The name of the step to get the timeout of, e.g. xsts, or {@code null} for the default one.
+     * @return The time in milliseconds the given step may spend on a request, including retries.
+     */
+    public static long getTimeout(String step) {
+        long timeout = Long.getLong("devlogin.timeout", 10000);
+        return step == null ? timeout : Long.getLong("devlogin.timeout." + step, timeout);
+    }
+
+    static long getTimeout(Timings.Step step) {
+        return getTimeout(step == null ? null : step.getName());
+    }
+
+    /**
+     * @param url A URL on the host to check
+     * @return Whether requests to the host of the given URL are currently being skipped because it kept failing or there is no network connection.
+     */
+    public static boolean isUnavailable(String url) {
+        if (Connectivity.isOffline()) return true;
+
+        Host host = hosts.get(getHostKey(url));
+        return host != null && host.isOpen();
+    }
+
+    private static Host getHost(String url) {
+        return hosts.computeIfAbsent(getHostKey(url), k -> new Host());
+    }
+
+    private static String getHostKey(String url) {
+        try {
+            URI uri = URI.create(url);
+            return uri.getScheme() + "://" + uri.getAuthority();
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    /**
+     * @param resp The response to check
+     * @return The time in milliseconds the server asked us to wait before retrying or -1 if it did not say.
+     */
+    private static long getRetryAfter(HttpTransport.Response resp) {
+        String retryAfter = resp.getHeader("Retry-After");
+        if (retryAfter == null) return -1;
+
+        try {
+            return Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                return ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis();
+            } catch (DateTimeParseException e1) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * A single request that may be sent multiple times.
+     * Only one attempt is retried at a time, if a hedged attempt is still in flight when another fails, that one is waited for instead.
+     */
+    private static class Call {
+        private final CompletableFuture<HttpTransport.Response> result = new CompletableFuture<>();
+        private final HttpTransport transport;
+        private final HttpTransport.Request request;
+        private final Timings.Step step;
+        private final String method, url;
+        private final boolean idempotent;
+        private final Host host;
+        private final long deadline;
+        private final int maxRetries = Integer.getInteger("devlogin.retries", 2);
+        private int retries, inFlight;
+
+        private Call(HttpTransport transport, HttpTransport.Request request, Timings.Step step, boolean idempotent) {
+            this.transport = transport;
+            this.request = request;
+            this.step = step;
+            this.method = request.getMethod();
+            this.url = request.getUrl();
+            this.idempotent = idempotent;
+            this.host = getHost(url);
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getTimeout(step));
+        }
+
+        private void attempt(boolean hedge) {
+            long wait;
+            synchronized (this) {
+                if (result.isDone()) return;
+
+                long remaining = getRemaining();
+                if (remaining <= 0) {
+                    if (inFlight == 0) result.completeExceptionally(new TimeoutException(method + " " + url + " timed out."));
+                    return;
+                }
+                if (host.isOpen()) { // No use waiting for our turn if the attempt won't be sent anyway.
+                    if (inFlight == 0) result.completeExceptionally(new CircuitOpenException(url));
+                    return;
+                }
+                if (Connectivity.isOffline()) {
+                    if (inFlight == 0) result.completeExceptionally(new Connectivity.OfflineException(url));
+                    return;
+                }
+
+                wait = RateLimiter.reserve(url, remaining);
+                if (wait < 0) {
+                    if (inFlight == 0) result.completeExceptionally(new TimeoutException(method + " " + url + " could not be sent in time without exceeding the rate limit."));
+                    return;
+                }
+
+                inFlight++; // Includes attempts waiting for their turn, so nothing is retried while one is.
+            }
+
+            if (wait == 0) send(hedge);
+            else {
+                LOG.debug("Sending " + method + " " + url + " in " + wait + " ms to stay under the rate limit.");
+                DevLogin.getScheduler().schedule(() -> send(hedge), wait, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void send(boolean hedge) {
+            CompletableFuture<HttpTransport.Response> attempt;
+            synchronized (this) {
+                if (result.isDone()) {
+                    inFlight--;
+                    return;
+                }
+                if (!host.allowRequest()) {
+                    if (--inFlight == 0) result.completeExceptionally(new CircuitOpenException(url));
+                    return;
+                }
+
+                attempt = Timings.execute(transport, request, (int) Math.max(1, Math.min(Integer.MAX_VALUE, getRemaining())), step);
+            }
+
+            long start = System.nanoTime();
+            if (idempotent && !hedge) {
+                long hedgeDelay = host.getHedgeDelay();
+                if (hedgeDelay > 0 && hedgeDelay < getRemaining()) DevLogin.getScheduler().schedule(() -> {
+                    if (result.isDone() || attempt.isDone()) return;
+
+                    LOG.debug("Hedging " + method + " " + url + " after " + hedgeDelay + " ms.");
+                    if (step != null) step.hedged();
+                    attempt(true);
+                }, hedgeDelay, TimeUnit.MILLISECONDS);
+            }
+
+            attempt.whenComplete((resp, t) -> onAttempt(resp, t, System.nanoTime() - start));
+        }
+
+        private void onAttempt(HttpTransport.Response resp, Throwable t, long took) {
+            int status = resp == null ? 0 : resp.getStatusCode();
+            if (t != null || status >= 500) host.recordFailure();
+            else host.recordSuccess(took);
+            if (status == 429) RateLimiter.limited(url, getRetryAfter(resp));
+            else if (t == null && status < 500) RateLimiter.succeeded(url);
+
+            long delay;
+            synchronized (this) {
+                inFlight--;
+                if (result.isDone()) return;
+
+                boolean retryable = t != null || status >= 500 || status == 429;
+                if (!retryable) {
+                    result.complete(resp);
+                    return;
+                }
+                if (inFlight > 0) return; // Another attempt may still succeed.
+
+                delay = resp == null ? -1 : getRetryAfter(resp);
+                if (delay > MAX_RETRY_AFTER) delay = -1; // Not worth waiting for, give up right away.
+                else if (delay < 0) delay = ThreadLocalRandom.current().nextLong(Math.min(BACKOFF_CAP, BACKOFF_BASE << Math.min(retries, 10)) + 1);
+
+                if (!idempotent || retries >= maxRetries || delay < 0 || delay >= getRemaining()) {
+                    if (t == null) result.complete(resp);
+                    else result.completeExceptionally(t);
+                    return;
+                }
+
+                retries++;
+            }
+
+            LOG.debug(String.format("Retrying %s %s in %d ms (%s).", method, url, delay, t == null ? "status " + status : t.getClass().getSimpleName()));
+            if (step != null) step.retried();
+            DevLogin.getScheduler().schedule(() -> attempt(false), delay, TimeUnit.MILLISECONDS);
+        }
+
+        private long getRemaining() {
+            return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+    }
+
+    /**
+     * The recent latencies of a host and the state of its circuit breaker.
+     * Once a host has failed too often in a row, no requests are sent to it until its cooldown has passed.
+     * After that, a single request is let through, which either closes the circuit or opens it again.
+     */
+    private static class Host {
+        private final long[] latencies = new long[64]; // Ring buffer of the latencies of recent successful requests in nanoseconds.
+        private int samples, failures;
+        private long openUntil;
+        private boolean trial;
+
+        private synchronized boolean allowRequest() {
+            if (openUntil == 0) return true;
+            if (trial || System.currentTimeMillis() < openUntil) return false;
+
+            trial = true;
+            return true;
+        }
+
+        private synchronized boolean isOpen() {
+            return openUntil != 0 && (trial || System.currentTimeMillis() < openUntil);
+        }
+
+        private synchronized void recordSuccess(long latency) {
+            latencies[samples++ % latencies.length] = latency;
+            failures = 0;
+            openUntil = 0;
+            trial = false;
+        }
+
+        private synchronized void recordFailure() {
+            trial = false;
+            if (++failures >= Integer.getInteger("devlogin.circuitThreshold", 3)) {
+                if (openUntil == 0 || System.currentTimeMillis() >= openUntil) LOG.warn("Too many failed requests in a row, skipping host for a while.");
+                openUntil = System.currentTimeMillis() + Long.getLong("devlogin.circuitCooldown", 30000);
+            }
+        }
+
+        /**
+         * @return The time in milliseconds after which a request to this host should be hedged or 0 if it should not be.
+         */
+        private long getHedgeDelay() {
+            int percentile = Integer.getInteger("devlogin.hedgePercentile", 95);
+            if (percentile <= 0) return 0;
+
+            long[] sorted;
+            synchronized (this) {
+                if (samples < MIN_SAMPLES) return Long.getLong("devlogin.hedgeDelay", 2000);
+                sorted = Arrays.copyOf(latencies, Math.min(samples, latencies.length));
+            }
+
+            Arrays.sort(sorted);
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile / 100d * sorted.length) - 1)]));
+        }
+    }
+
+    /**
+     * Thrown when a request is not sent because its host kept failing.
+     */
+    public static class CircuitOpenException extends IOException {
+        private CircuitOpenException(String url) {
+            super("Skipped request to " + getHostKey(url) + " as it kept failing.");
+        }
+    }
+}
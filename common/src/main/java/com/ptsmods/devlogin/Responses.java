@@ -0,0 +1,376 @@
+package com.ptsmods.devlogin;
+
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * The responses of the endpoints DevLogin uses. Only the fields DevLogin needs are read, the rest is skipped.
+ * Each has an adapter that is registered with {@link Json#GSON}.
+ */
+final class Responses {
+    /**
+     * The type of a list of {@link Profile}s, as returned by the bulk name lookup.
+     */
+    static final Type PROFILES = new TypeToken<List<Profile>>() {}.getType();
+    /**
+     * The type of a list of {@link Property}s, as found in session profiles.
+     */
+    static final Type PROPERTIES = new TypeToken<List<Property>>() {}.getType();
+
+    private Responses() {}
+
+    /**
+     * The response of Microsoft's device code endpoint.
+     */
+    static class DeviceCode {
+        static final Json.ResponseAdapter<DeviceCode> ADAPTER = new Json.ResponseAdapter<DeviceCode>() {
+            @Override
+            DeviceCode create() {
+                return new DeviceCode();
+            }
+
+            @Override
+            boolean readField(DeviceCode value, String name, JsonReader reader) throws IOException {
+                switch (name) {
+                    case "device_code":
+                        value.deviceCode = reader.nextString();
+                        return true;
+                    case "user_code":
+                        value.userCode = reader.nextString();
+                        return true;
+                    case "verification_uri":
+                        value.verificationUri = reader.nextString();
+                        return true;
+                    case "interval":
+                        value.interval = reader.nextInt();
+                        return true;
+                    case "expires_in":
+                        value.expiresIn = reader.nextInt();
+                        return true;
+                    case "error":
+                        value.error = reader.nextString();
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+        };
+        String deviceCode, userCode, verificationUri, error;
+        int interval = 5, expiresIn = 900; // The defaults of RFC 8628 and Microsoft respectively.
+    }
+
+    /**
+     * The response of Microsoft's token endpoint, used both for the device code flow and for refreshing.
+     * Contains an error instead of tokens if the request was denied or, when polling, if the user has not authenticated yet.
+     */
+    static class OAuthTokens {
+        static final Json.ResponseAdapter<OAuthTokens> ADAPTER = new Json.ResponseAdapter<OAuthTokens>() {
+            @Override
+            OAuthTokens create() {
+                return new OAuthTokens();
+            }
+
+            @Override
+            boolean readField(OAuthTokens value, String name, JsonReader reader) throws IOException {
+                switch (name) {
+                    case "access_token":
+                        value.accessToken = reader.nextString();
+                        return true;
+                    case "refresh_token":
+                        value.refreshToken = reader.nextString();
+                        return true;
+                    case "expires_in":
+                        value.expiresIn = reader.nextLong();
+                        return true;
+                    case "error":
+                        value.error = reader.nextString();
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+        };
+        private final long received = System.currentTimeMillis();
+        String accessToken, refreshToken, error;
+        long expiresIn;
+
+        /**
+         * @return Whether this response contains tokens.
+         */
+        boolean isOk() {
+            return error == null && accessToken != null && refreshToken != null;
+        }
+
+        /**
+         * @return The epoch in milliseconds at which the access token expires or {@code 0} if it's not known.
+         */
+        long getExpiry() {
+            return expiresIn == 0 ? 0 : received + expiresIn * 1000L;
+        }
+    }
+
+    /**
+     * The response of Xbox Live's XBL and XSTS endpoints. Contains an error code instead of a token if the request was denied.
+     */
+    static class XboxToken {
+        static final Json.ResponseAdapter<XboxToken> ADAPTER = new Json.ResponseAdapter<XboxToken>() {
+            @Override
+            XboxToken create() {
+                return new XboxToken();
+            }
+
+            @Override
+            boolean readField(XboxToken value, String name, JsonReader reader) throws IOException {
+                switch (name) {
+                    case "Token":
+                        value.token = reader.nextString();
+                        return true;
+                    case "NotAfter":
+                        value.notAfter = reader.nextString();
+                        return true;
+                    case "DisplayClaims":
+                        value.userHash = readUserHash(reader);
+                        return true;
+                    case "XErr":
+                        value.xErr = reader.nextLong();
+                        return true;
+                    case "Message":
+                        value.message = reader.nextString();
+                        return true;
+                    case "Redirect":
+                        value.redirect = reader.nextString();
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+
+            /**
+             * Reads {@code DisplayClaims.xui[0].uhs}.
+             */
+            private String readUserHash(JsonReader reader) throws IOException {
+                String userHash = null;
+                reader.beginObject();
+                while (reader.hasNext())
+                    if (reader.nextName().equals("xui") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        reader.beginArray();
+                        if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                            reader.beginObject();
+                            while (reader.hasNext())
+                                if (reader.nextName().equals("uhs") && reader.peek() == JsonToken.STRING) userHash = reader.nextString();
+                                else reader.skipValue();
+                            reader.endObject();
+                        }
+                        while (reader.hasNext()) reader.skipValue();
+                        reader.endArray();
+                    } else reader.skipValue();
+                reader.endObject();
+                return userHash;
+            }
+        };
+        String token, notAfter, userHash, message, redirect;
+        long xErr;
+
+        /**
+         * @return The epoch in milliseconds at which the token expires or {@code 0} if it's not known.
+         */
+        long getNotAfter() {
+            try {
+                return notAfter == null ? 0 : Instant.parse(notAfter).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * The response of Minecraft Services' login_with_xbox endpoint.
+     */
+    static class MinecraftToken {
+        static final Json.ResponseAdapter<MinecraftToken> ADAPTER = new Json.ResponseAdapter<MinecraftToken>() {
+            @Override
+            MinecraftToken create() {
+                return new MinecraftToken();
+            }
+
+            @Override
+            boolean readField(MinecraftToken value, String name, JsonReader reader) throws IOException {
+                switch (name) {
+                    case "access_token":
+                        value.accessToken = reader.nextString();
+                        return true;
+                    case "error":
+                        value.error = reader.nextString();
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+        };
+        String accessToken, error;
+    }
+
+    /**
+     * The UUID and name of a player, as returned by Minecraft Services' profile endpoint and Mojang's name lookups.
+     * Contains an error instead if the player does not exist or, for the profile endpoint, if the token is not valid.
+     */
+    static class Profile {
+        static final Json.ResponseAdapter<Profile> ADAPTER = new Json.ResponseAdapter<Profile>() {
+            @Override
+            Profile create() {
+                return new Profile();
+            }
+
+            @Override
+            boolean readField(Profile value, String name, JsonReader reader) throws IOException {
+                switch (name) {
+                    case "id":
+                        value.id = reader.nextString();
+                        return true;
+                    case "name":
+                        value.name = reader.nextString();
+                        return true;
+                    case "error":
+                        value.error = reader.nextString();
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+        };
+        String id, name, error;
+
+        /**
+         * @return Whether this response contains a profile.
+         */
+        boolean isOk() {
+            return error == null && id != null && name != null;
+        }
+    }
+
+    /**
+     * The response of the session server's profile endpoint.
+     */
+    static class SessionProfile {
+        static final Json.ResponseAdapter<SessionProfile> ADAPTER = new Json.ResponseAdapter<SessionProfile>() {
+            @Override
+            SessionProfile create() {
+                return new SessionProfile();
+            }
+
+            @Override
+            boolean readField(SessionProfile value, String name, JsonReader reader) throws IOException {
+                switch (name) {
+                    case "id":
+                        value.id = reader.nextString();
+                        return true;
+                    case "name":
+                        value.name = reader.nextString();
+                        return true;
+                    case "properties":
+                        // Passed on to the game as is.
+                        value.properties = JsonParser.parseReader(reader).toString();
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+        };
+        String id, name;
+        String properties; // As JSON
+    }
+
+    /**
+     * A signed profile property, as found in session profiles.
+     */
+    static class Property {
+        static final Json.ResponseAdapter<Property> ADAPTER = new Json.ResponseAdapter<Property>() {
+            @Override
+            Property create() {
+                return new Property();
+            }
+
+            @Override
+            boolean readField(Property value, String name, JsonReader reader) throws IOException {
+                switch (name) {
+                    case "name":
+                        value.name = reader.nextString();
+                        return true;
+                    case "value":
+                        value.value = reader.nextString();
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+        };
+        String name, value;
+    }
+
+    /**
+     * The decoded value of the textures property, which tells where to download the skin and cape of a player.
+     */
+    static class Textures {
+        static final Json.ResponseAdapter<Textures> ADAPTER = new Json.ResponseAdapter<Textures>() {
+            @Override
+            Textures create() {
+                return new Textures();
+            }
+
+            @Override
+            boolean readField(Textures value, String name, JsonReader reader) throws IOException {
+                if (!name.equals("textures")) return false;
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String type = reader.nextName();
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+
+                    reader.beginObject();
+                    while (reader.hasNext())
+                        if (reader.nextName().equals("url") && reader.peek() == JsonToken.STRING) {
+                            if (type.equals("SKIN")) value.skin = reader.nextString();
+                            else if (type.equals("CAPE")) value.cape = reader.nextString();
+                            else reader.skipValue();
+                        } else reader.skipValue();
+                    reader.endObject();
+                }
+                reader.endObject();
+                return true;
+            }
+        };
+        String skin, cape; // URLs
+    }
+
+    /**
+     * The payload of a JWT, like the Minecraft token.
+     */
+    static class JwtPayload {
+        static final Json.ResponseAdapter<JwtPayload> ADAPTER = new Json.ResponseAdapter<JwtPayload>() {
+            @Override
+            JwtPayload create() {
+                return new JwtPayload();
+            }
+
+            @Override
+            boolean readField(JwtPayload value, String name, JsonReader reader) throws IOException {
+                if (!name.equals("exp")) return false;
+
+                value.exp = reader.nextLong();
+                return true;
+            }
+        };
+        long exp; // Epoch in seconds
+    }
+}
@@ -0,0 +1,118 @@
+package com.ptsmods.devlogin;
+
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * A JSON file that can safely be read and updated by multiple threads and processes at the same time.
+ * Updates lock a separate lock file and atomically replace the file, so reads never see
+ * a partially written file and don't have to lock anything.
+ * Only a single instance should exist per file as {@link FileLock}s are held by the entire JVM.
+ * @param <T> The type of the data stored in this file
+ */
+class SharedJsonFile<T> {
+    private static final Logger LOG = LogManager.getLogger("DevLogin");
+    private final Path file, lockFile;
+    private final Type type;
+    private final Supplier<T> defaultValue;
+    private final Lock lock = new ReentrantLock(); // Threads in this JVM have to be kept apart separately.
+
+    SharedJsonFile(Path file, Type type, Supplier<T> defaultValue) {
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        this.type = type;
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Reads the data currently stored in this file.
+     * @return The stored data or the default value if there is none or it could not be read.
+     */
+    T read() {
+        try {
+            return readStored();
+        } catch (IOException | JsonParseException e) {
+            LOG.error("Could not read " + file + ".", e);
+            return defaultValue.get();
+        }
+    }
+
+    /**
+     * @return The stored data or the default value if there is none.
+     * @throws IOException If the file could not be read.
+     * @throws JsonParseException If the file is not valid JSON or does not match the type of the data.
+     */
+    private T readStored() throws IOException {
+        if (!Files.exists(file)) return defaultValue.get();
+
+        try (InputStream in = Files.newInputStream(file)) {
+            T value = Json.read(in, type);
+            return value == null ? defaultValue.get() : value;
+        }
+    }
+
+    /**
+     * Reads, updates and writes the data stored in this file while holding its lock,
+     * so no updates from other threads or processes get lost.
+     * If the file can't be parsed, e.g. because it was edited by hand, it's moved aside to a {@code .corrupt} file
+     * rather than overwritten, so whatever it contains can still be recovered.
+     * @param updater Takes the currently stored data and returns the data to store.
+     * @return The data that was stored.
+     * @throws IOException If the file could not be locked, read or written.
+     */
+    T update(UnaryOperator<T> updater) throws IOException {
+        lock.lock();
+        try {
+            Files.createDirectories(file.getParent());
+
+            try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                T current;
+                try {
+                    current = readStored();
+                } catch (JsonParseException e) {
+                    Path corrupt = file.resolveSibling(file.getFileName() + "." + System.currentTimeMillis() + ".corrupt");
+                    Files.move(file, corrupt);
+                    LOG.error("Could not read " + file + ", moved it to " + corrupt + " and starting over.", e);
+                    current = defaultValue.get();
+                }
+
+                T value = updater.apply(current);
+
+                // Temporary files are only readable by the owner, which is what we want for tokens.
+                Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+                try {
+                    try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                        Json.PRETTY_GSON.toJson(value, type, writer);
+                    }
+
+                    try {
+                        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+
+                return value;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.swing.*;
+import javax.swing.event.HyperlinkEvent;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Locale;
+
+/**
+ * Shows messages in basic Swing dialogs.
+ * This is the only class in DevLogin that uses AWT or Swing, so they're only loaded once a dialog is actually shown.
+ */
+class SwingLoginUi implements LoginUi {
+    static final SwingLoginUi INSTANCE = new SwingLoginUi();
+    private static final Logger LOG = LogManager.getLogger("DevLogin-MSA");
+    private boolean initialised;
+
+    private SwingLoginUi() {}
+
+    @Override
+    public Handle show(String title, String message, Runnable onClose) {
+        init();
+
+        JFrame frame = new JFrame(title);
+        frame.setLayout(new GridBagLayout());
+
+        JEditorPane textPane = new JEditorPane();
+        textPane.setContentType("text/html");
+        textPane.setText("<html>" + message + "</html>");
+        textPane.addHyperlinkListener(e -> {
+            if (e.getEventType() == HyperlinkEvent.EventType.ACTIVATED)
+                try {
+                    Desktop.getDesktop().browse(e.getURL().toURI());
+                } catch (IOException | URISyntaxException ex) {
+                    LOG.error("Error while trying to browse to " + e.getURL(), ex);
+                }
+        });
+        textPane.setEditable(false);
+        textPane.setOpaque(false);
+        frame.add(textPane);
+
+        frame.pack();
+        frame.setSize(frame.getWidth() + 20, frame.getHeight() + 50);
+        frame.setLocationRelativeTo(null);
+        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                if (onClose != null) onClose.run();
+            }
+        });
+        frame.setVisible(true);
+
+        return frame::dispose;
+    }
+
+    private synchronized void init() {
+        if (initialised) return;
+        initialised = true;
+
+        // Can't display dialogs otherwise. Only works as long as AWT has not been initialised yet, which, as the game
+        // hasn't started yet, it never has been unless a dialog was shown before, in which case this has been set already.
+        System.setProperty("java.awt.headless", "false");
+
+        // Checked the same way Minecraft.ON_OSX is, as loading any class of the game may happen before mods are done preparing
+        // their mixins into it, which they can't do once it's loaded. Calls to setLookAndFeel on Mac appear to freeze the game.
+        if (!System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("mac"))
+            try {
+                UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | UnsupportedLookAndFeelException e) {
+                LOG.error("Could not set system look and feel.", e);
+            }
+    }
+}
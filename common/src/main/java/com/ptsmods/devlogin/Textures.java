@@ -0,0 +1,184 @@
+package com.ptsmods.devlogin;
+
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads the skin and cape of the player the game is launched as while logging in, so the game does not
+ * have to download them itself and show the default skin until it has.
+ * Textures are stored in the {@code textures} directory in {@link DevLogin#getDirectory()}, named after their hash,
+ * which is part of their URL and is a hash of their contents, so a texture that has been downloaded once never has to be downloaded again.
+ * From there, they are copied to the directory the game caches skins in.
+ */
+public class Textures {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-Textures");
+    private static final Pattern HASH = Pattern.compile("[0-9A-Za-z]+");
+    private static Path skinsDirectory;
+
+    /**
+     * @param assetsDirectory The assets directory the game is launched with, which contains the directory it caches skins in,
+     *                        or {@code null} if it's not known, in which case textures are only downloaded to DevLogin's own cache.
+     */
+    static synchronized void setAssetsDirectory(Path assetsDirectory) {
+        skinsDirectory = assetsDirectory == null ? null : assetsDirectory.resolve("skins");
+    }
+
+    /**
+     * Downloads the textures in the given profile properties, unless they have been downloaded before.
+     * Never fails, problems are only logged as the game can still download the textures itself.
+     * @param proxy The proxy to route requests through.
+     * @param properties The signed profile properties of a player as JSON, as returned by the session server.
+     * @return A future that completes once all textures are in place.
+     */
+    public static CompletableFuture<Void> prefetch(Proxy proxy, String properties) {
+        if (properties == null) return CompletableFuture.completedFuture(null);
+
+        List<String> urls;
+        try {
+            urls = getUrls(properties);
+        } catch (JsonParseException | IllegalArgumentException e) {
+            LOG.warn("Could not read textures from profile properties.", e);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Path skins;
+        synchronized (Textures.class) {
+            skins = skinsDirectory;
+        }
+
+        List<CompletableFuture<Void>> downloads = new ArrayList<>();
+        for (String url : urls) downloads.add(prefetchTexture(proxy, url, skins));
+        return CompletableFuture.allOf(downloads.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * @return The URLs of the skin and cape in the given properties, if any.
+     */
+    private static List<String> getUrls(String properties) {
+        List<Responses.Property> parsed = Json.read(new ByteArrayInputStream(properties.getBytes(StandardCharsets.UTF_8)), Responses.PROPERTIES);
+        if (parsed == null) return Collections.emptyList();
+
+        List<String> urls = new ArrayList<>();
+        for (Responses.Property property : parsed) {
+            if (property == null || !"textures".equals(property.name) || property.value == null) continue;
+
+            Responses.Textures textures = Json.read(new ByteArrayInputStream(Base64.getDecoder().decode(property.value)), Responses.Textures.class);
+            if (textures == null) continue;
+            if (textures.skin != null) urls.add(textures.skin);
+            if (textures.cape != null) urls.add(textures.cape);
+        }
+        return urls;
+    }
+
+    private static CompletableFuture<Void> prefetchTexture(Proxy proxy, String url, Path skins) {
+        String hash = getHash(url);
+        if (hash == null) {
+            LOG.debug("Not prefetching texture with unexpected URL " + url);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Path cached = DevLogin.getDirectory().resolve("textures").resolve(hash);
+        if (Files.exists(cached)) {
+            install(cached, hash, skins);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Timings.Step step = Timings.start("texture"); // Runs alongside the rest of the login.
+        // Retried and skipped without a network connection like every other request.
+        Connectivity.check(proxy);
+        return Resilience.execute(Http.getTransport(proxy), HttpTransport.Request.get(url), step, true)
+                .thenAccept(resp -> {
+                    if (resp.getStatusCode() != 200) {
+                        LOG.warn("Could not download texture " + hash + ", status code " + resp.getStatusCode());
+                        return;
+                    }
+
+                    try {
+                        write(cached, resp.getBodyAsBytes());
+                        step.succeed();
+                    } catch (IOException e) {
+                        LOG.warn("Could not store texture " + hash + ".", e);
+                        return;
+                    }
+                    install(cached, hash, skins);
+                })
+                .whenComplete((v, t) -> {
+                    if (t != null) LOG.warn("Could not download texture " + hash + ".", t);
+                    step.close();
+                })
+                .exceptionally(t -> null);
+    }
+
+    /**
+     * Copies a texture to the directory the game caches skins in, where it looks for it before downloading it.
+     */
+    private static void install(Path cached, String hash, Path skins) {
+        if (skins == null) return;
+
+        // The game names the files after the SHA-1 of the hash of the texture, see SkinManager.TextureCache#registerTexture.
+        String name = sha1(hash);
+        Path target = skins.resolve(name.substring(0, 2)).resolve(name);
+        if (Files.exists(target)) return;
+
+        try {
+            write(target, Files.readAllBytes(cached));
+            LOG.debug("Prefetched texture " + hash + ".");
+        } catch (IOException e) {
+            LOG.warn("Could not copy texture " + hash + " to " + target + ".", e);
+        }
+    }
+
+    /**
+     * Writes a file atomically, so the game never reads a texture that is only partially written.
+     */
+    private static void write(Path file, byte[] bytes) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, bytes);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return The hash of the texture at the given URL, which is the name of the file without extension,
+     * or {@code null} if it does not look like a hash.
+     */
+    private static String getHash(String url) {
+        String name = url.substring(url.lastIndexOf('/') + 1);
+        if (name.indexOf('.') != -1) name = name.substring(0, name.indexOf('.'));
+        return HASH.matcher(name).matches() ? name : null;
+    }
+
+    /**
+     * @return The SHA-1 of the UTF-16 code units of the given string as hex, the same as Guava's {@code Hashing.sha1().hashUnencodedChars(s)}.
+     */
+    private static String sha1(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_16LE));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) sb.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM supports SHA-1.
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Times the steps DevLogin takes to log in and every request made during them.
+ * Steps and requests are emitted as JFR events while JFR is recording and everything that happened during a launch
+ * is written to a JSON summary in the {@code timings} directory in {@link DevLogin#getDirectory()},
+ * so startup latency can be aggregated across machines.
+ * Writing summaries can be turned off by setting the {@code devlogin.timings} system property to {@code false}.
+ */
+public class Timings {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-Timings");
+    private static final int MAX_SUMMARIES = 100;
+    private static final ThreadLocal<Step> current = new ThreadLocal<>();
+    // Only created once JFR is recording, as creating them takes a while and is of no use otherwise.
+    private static volatile JfrEventType stepEvent = JfrEventType.DISABLED, requestEvent = JfrEventType.DISABLED, loginEvent = JfrEventType.DISABLED;
+    private static List<Step> steps; // The steps of the current launch or null if no launch is being timed.
+    private static long launchStart, launchStartMillis;
+    private static Object launchEvent;
+
+    /**
+     * Starts timing the launch. Every step that ends before {@link #finish(String, boolean)} is called is part of its summary.
+     * Does nothing if the launch is already being timed.
+     */
+    static synchronized void begin() {
+        if (steps != null) return;
+
+        if (loginEvent == JfrEventType.DISABLED && JfrEventType.isRecording()) createEventTypes();
+        steps = new ArrayList<>();
+        launchStart = System.nanoTime();
+        launchStartMillis = System.currentTimeMillis();
+        launchEvent = loginEvent.begin();
+    }
+
+    private static void createEventTypes() {
+        stepEvent = JfrEventType.create("com.ptsmods.devlogin.Step", "DevLogin Step",
+                "name", String.class, "result", String.class, "requests", int.class, "retries", int.class, "hedges", int.class);
+        requestEvent = JfrEventType.create("com.ptsmods.devlogin.Request", "DevLogin Request",
+                "step", String.class, "method", String.class, "url", String.class, "status", int.class, "result", String.class, "retries", int.class,
+                "dnsMs", double.class, "connectMs", double.class, "tlsMs", double.class, "ttfbMs", double.class, "totalMs", double.class);
+        loginEvent = JfrEventType.create("com.ptsmods.devlogin.Login", "DevLogin Login",
+                "login", String.class, "result", String.class, "steps", int.class);
+    }
+
+    /**
+     * Stops timing the launch, logs how long each step took and writes the summary.
+     * @param login The kind of login that was done, e.g. msa or mimicPlayer.
+     * @param success Whether the login resulted in a profile.
+     */
+    static synchronized void finish(String login, boolean success) {
+        if (steps == null) return;
+
+        Summary summary = new Summary(launchStartMillis, login, success ? "ok" : "failed", System.nanoTime() - launchStart, new ArrayList<>(steps));
+        loginEvent.commit(launchEvent, login, summary.result, summary.steps.size());
+        steps = null;
+        launchEvent = null;
+
+        LOG.info(String.format("Login took %.0f ms (%s).", summary.totalMs, summary.steps.stream()
+                .map(step -> String.format("%s: %.0f ms", step.name, step.durationMs))
+                .collect(Collectors.joining(", "))));
+
+        if ("false".equals(System.getProperty("devlogin.timings"))) return;
+
+        // Writing the summary is not worth delaying the game for.
+        Thread thread = new Thread(() -> writeSummary(summary), "DevLogin-Timings");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts a step. It is the current step of this thread until it is closed,
+     * so all requests made on this thread in the meantime are attributed to it.
+     * Should be used in a try-with-resources statement.
+     * @param name The name of the step
+     * @return The started step
+     */
+    static Step step(String name) {
+        Step step = new Step(name, current.get());
+        current.set(step);
+        return step;
+    }
+
+    /**
+     * Starts a step that runs alongside other steps, so it is not made the current step of this thread.
+     * Requests that are part of it must be attributed to it explicitly and it must be closed once it is done.
+     * @param name The name of the step
+     * @return The started step
+     */
+    static Step start(String name) {
+        return new Step(name, null);
+    }
+
+    /**
+     * @return The step that is currently running on this thread or {@code null} if there is none.
+     */
+    static Step current() {
+        return current.get();
+    }
+
+    /**
+     * Sends a request and times it.
+     * @param transport The transport to send the request with.
+     * @param request The request to send
+     * @param timeout The time in milliseconds the request may take at most.
+     * @param step The step the request is part of or {@code null} if it is not part of any.
+     * @return A future that completes with the response.
+     */
+    static CompletableFuture<HttpTransport.Response> execute(HttpTransport transport, HttpTransport.Request request, int timeout, Step step) {
+        TimedListener listener = new TimedListener(step, request.getMethod(), request.getUrl());
+        return transport.send(request, timeout, listener).whenComplete((resp, t) -> {
+            if (t != null) listener.finish(t.getClass().getSimpleName());
+            else listener.finish(resp.getStatusCode() < 400 ? "ok" : "status " + resp.getStatusCode());
+        });
+    }
+
+    private static void writeSummary(Summary summary) {
+        Path dir = DevLogin.getDirectory().resolve("timings");
+        try {
+            Files.createDirectories(dir);
+
+            RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+            summary.jvmUptimeMs = summary.end - runtime.getStartTime();
+            String pid = runtime.getName().split("@")[0];
+            try (Writer writer = Files.newBufferedWriter(dir.resolve("launch-" + System.currentTimeMillis() + "-" + pid + ".json"), StandardCharsets.UTF_8)) {
+                Json.PRETTY_GSON.toJson(summary, writer);
+            }
+
+            // Only keep the most recent summaries.
+            List<Path> summaries;
+            try (Stream<Path> files = Files.list(dir)) {
+                summaries = files.filter(p -> p.getFileName().toString().startsWith("launch-")).sorted(Comparator.comparing(p -> p.toFile().lastModified())).collect(Collectors.toList());
+            }
+            for (int i = 0; i < summaries.size() - MAX_SUMMARIES; i++) Files.deleteIfExists(summaries.get(i));
+        } catch (IOException e) {
+            LOG.warn("Could not write timings summary.", e);
+        }
+    }
+
+    private static synchronized void record(Step step) {
+        if (steps != null) steps.add(step);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos < 0 ? -1 : Math.round(nanos / 10_000d) / 100d;
+    }
+
+    /**
+     * A step in the login process, like requesting the XBL token or looking up the player to mimic.
+     */
+    static class Step implements AutoCloseable {
+        private final String name;
+        private final String start = Instant.now().toString();
+        private final transient Step parent;
+        private final transient long startNanos = System.nanoTime();
+        private final transient Object event = stepEvent.begin();
+        private final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+        private String result = "failed";
+        private int retries, hedges;
+        private double durationMs;
+
+        private Step(String name, Step parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Records that a request made during this step was retried.
+         */
+        synchronized void retried() {
+            retries++;
+        }
+
+        /**
+         * Records that a request made during this step took so long that a second one was sent.
+         */
+        synchronized void hedged() {
+            hedges++;
+        }
+
+        /**
+         * Marks this step as successful. Steps that are closed without calling this or {@link #result(String)} have failed.
+         */
+        void succeed() {
+            result("ok");
+        }
+
+        /**
+         * @param result The outcome of this step, e.g. ok, cached or failed
+         */
+        void result(String result) {
+            this.result = result;
+        }
+
+        @Override
+        public void close() {
+            durationMs = toMillis(System.nanoTime() - startNanos);
+            if (current.get() == this) {
+                if (parent == null) current.remove();
+                else current.set(parent);
+            }
+
+            stepEvent.commit(event, name, result, requests.size(), retries, hedges);
+            record(this);
+        }
+    }
+
+    private static class Request {
+        private final String method, url;
+        private int status;
+        private String result;
+        private int retries;
+        private double dnsMs = -1, connectMs = -1, tlsMs = -1, ttfbMs = -1, totalMs;
+
+        private Request(String method, String url) {
+            this.method = method;
+            this.url = url;
+        }
+    }
+
+    private static class Summary {
+        private final String start, login, result;
+        private final transient long end = System.currentTimeMillis();
+        private long jvmUptimeMs; // How long the JVM had been running once the login was done.
+        private final double totalMs;
+        private final List<Step> steps;
+
+        private Summary(long start, String login, String result, long durationNanos, List<Step> steps) {
+            this.start = Instant.ofEpochMilli(start).toString();
+            this.login = login;
+            this.result = result;
+            this.totalMs = toMillis(durationNanos);
+            this.steps = steps;
+        }
+    }
+
+    /**
+     * Records the timings of a request as the transport reports its progress.
+     * DNS, connect and TLS times are only known when a new connection had to be made
+     * and the transport reports them, they are -1 otherwise.
+     */
+    private static class TimedListener implements HttpTransport.Listener {
+        private final Step step;
+        private final Request request;
+        private final long start = System.nanoTime();
+        private final Object event = requestEvent.begin();
+
+        private TimedListener(Step step, String method, String url) {
+            this.step = step;
+            int query = url.indexOf('?');
+            this.request = new Request(method, query == -1 ? url : url.substring(0, query)); // Queries may contain things we don't want in a file.
+        }
+
+        @Override
+        public void onHostnameResolved(long nanos) {
+            request.dnsMs = toMillis(nanos);
+        }
+
+        @Override
+        public void onConnected(long nanos) {
+            request.connectMs = toMillis(nanos);
+        }
+
+        @Override
+        public void onTlsHandshake(long nanos) {
+            request.tlsMs = toMillis(nanos);
+        }
+
+        @Override
+        public void onRetry() {
+            request.retries++;
+        }
+
+        @Override
+        public void onStatus(int status) {
+            if (request.ttfbMs == -1) request.ttfbMs = toMillis(System.nanoTime() - start);
+            request.status = status;
+        }
+
+        private void finish(String result) {
+            request.result = result;
+            request.totalMs = toMillis(System.nanoTime() - start);
+            if (step != null) step.requests.add(request);
+
+            requestEvent.commit(event, step == null ? null : step.name, request.method, request.url, request.status, request.result, request.retries,
+                    request.dnsMs, request.connectMs, request.tlsMs, request.ttfbMs, request.totalMs);
+            if (LOG.isDebugEnabled()) LOG.debug(String.format("%s %s: %s in %.2f ms (DNS %.2f ms, connect %.2f ms, TLS %.2f ms, first byte %.2f ms, %d retries)",
+                    request.method, request.url, result, request.totalMs, request.dnsMs, request.connectMs, request.tlsMs, request.ttfbMs, request.retries));
+        }
+    }
+
+    /**
+     * A custom JFR event type, created through reflection as JFR is not available on Java 8, which DevLogin has to support.
+     * If JFR is not available, all methods do nothing.
+     */
+    private static class JfrEventType {
+        private static final JfrEventType DISABLED = new JfrEventType(null, null, null, null, null, null);
+        private final Object factory;
+        private final Method newEvent, set, begin, end, commit;
+
+        private JfrEventType(Object factory, Method newEvent, Method set, Method begin, Method end, Method commit) {
+            this.factory = factory;
+            this.newEvent = newEvent;
+            this.set = set;
+            this.begin = begin;
+            this.end = end;
+            this.commit = commit;
+        }
+
+        /**
+         * @return Whether JFR is available and has been started, e.g. with {@code -XX:StartFlightRecording}.
+         */
+        private static boolean isRecording() {
+            try {
+                return (boolean) Class.forName("jdk.jfr.FlightRecorder").getMethod("isInitialized").invoke(null);
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @param name The name of the event type
+         * @param label The human-readable name of the event type
+         * @param fields The names and types of the fields of the event type, alternating.
+         * @return The event type or a disabled one if JFR is not available.
+         */
+        private static JfrEventType create(String name, String label, Object... fields) {
+            try {
+                Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+                Constructor<?> newField = valueDescriptor.getConstructor(Class.class, String.class);
+
+                List<Object> annotations = Arrays.asList(
+                        newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), name),
+                        newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), label),
+                        newAnnotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"DevLogin"}));
+                List<Object> descriptors = new ArrayList<>();
+                for (int i = 0; i < fields.length; i += 2) descriptors.add(newField.newInstance(fields[i + 1], fields[i]));
+
+                Object factory = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class).invoke(null, annotations, descriptors);
+                return new JfrEventType(factory, factory.getClass().getMethod("newEvent"), event.getMethod("set", int.class, Object.class),
+                        event.getMethod("begin"), event.getMethod("end"), event.getMethod("commit"));
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                LOG.debug("JFR is not available, not emitting " + name + " events.", e);
+                return DISABLED;
+            }
+        }
+
+        /**
+         * @return A new event of this type that has begun or {@code null} if JFR is not available.
+         */
+        private Object begin() {
+            if (factory == null) return null;
+
+            try {
+                Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return event;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.debug("Could not begin JFR event.", e);
+                return null;
+            }
+        }
+
+        /**
+         * Ends and commits an event returned by {@link #begin()}.
+         * @param event The event to commit, may be {@code null}.
+         * @param values The values of its fields in the order they were declared in.
+         */
+        private void commit(Object event, Object... values) {
+            if (event == null) return;
+
+            try {
+                for (int i = 0; i < values.length; i++) set.invoke(event, i, values[i]);
+                end.invoke(event);
+                commit.invoke(event);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.debug("Could not commit JFR event.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.ptsmods.devlogin;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.Proxy;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the tokens of accounts that were logged in with in the background before they expire.
+ * The refreshed tokens are stored, so the next launch won't have to refresh them either,
+ * and can be retrieved with {@link #getCurrent(UUID)} by anything that needs a valid token during long sessions.
+ * Failed refreshes are retried with a growing delay, unless the account has no refresh token (anymore), e.g. because Microsoft rejected it.
+ */
+public class TokenRefresher {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-TokenRefresher");
+    private static final long REFRESH_AHEAD = TimeUnit.MINUTES.toMillis(15); // Must be longer than the margin MSA uses to trust cached tokens.
+    private static final long MIN_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1), MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(15);
+    private static final Map<UUID, AuthenticationProfile> current = new ConcurrentHashMap<>();
+
+    /**
+     * Starts refreshing the token of the given profile before it expires.
+     * Does nothing if the profile is already being tracked.
+     * @param proxy The proxy to route requests through.
+     * @param profile The profile that was just logged in with.
+     */
+    public static void track(Proxy proxy, AuthenticationProfile profile) {
+        if (current.putIfAbsent(profile.getId(), profile) == null) schedule(proxy, profile.getId(), MIN_RETRY_DELAY);
+        else current.put(profile.getId(), profile);
+    }
+
+    /**
+     * @param id The UUID of the profile.
+     * @return The latest profile with the given UUID or {@code null} if it is not being tracked.
+     */
+    public static AuthenticationProfile getCurrent(UUID id) {
+        return current.get(id);
+    }
+
+    private static void schedule(Proxy proxy, UUID id, long retryDelay) {
+        long expiry = MSA.getTokenExpiry(current.get(id).getAccessToken());
+        if (expiry == 0) {
+            LOG.warn("Could not read when the token of " + current.get(id).getUsername() + " expires, it won't be refreshed.");
+            return;
+        }
+
+        long delay = Math.max(expiry - REFRESH_AHEAD - System.currentTimeMillis(), 0);
+        LOG.debug("Refreshing token of " + current.get(id).getUsername() + " at " + new Date(System.currentTimeMillis() + delay) + ".");
+        refreshLater(proxy, id, delay, retryDelay);
+    }
+
+    private static void refreshLater(Proxy proxy, UUID id, long delay, long retryDelay) {
+        // Refreshing doesn't block anything, so it can be started right on the scheduler.
+        DevLogin.getScheduler().schedule(() -> new MSA(proxy, true, true, false).refresh(UndashedUuid.toString(id)).whenComplete((refreshed, t) -> {
+            if (t != null) LOG.error("Could not refresh token", t);
+            if (refreshed == null) {
+                Map<String, String> data = TokenStore.get(UndashedUuid.toString(id));
+                if (data == null || data.get("refreshToken") == null) {
+                    // E.g. because it was rejected, in which case retrying won't ever work.
+                    LOG.warn("The token of " + current.get(id).getUsername() + " can no longer be refreshed, stopped refreshing it.");
+                    return;
+                }
+
+                LOG.warn("Could not refresh token, retrying in " + TimeUnit.MILLISECONDS.toSeconds(retryDelay) + " seconds.");
+                refreshLater(proxy, id, retryDelay, Math.min(retryDelay * 2, MAX_RETRY_DELAY));
+                return;
+            }
+
+            AuthenticationProfile profile = new AuthenticationProfile(refreshed.getName(), refreshed.getUuid(), refreshed.getToken(), AuthenticationProfile.Type.MSA,
+                    current.get(id).getProperties());
+            current.put(id, profile);
+            LOG.info("Refreshed token of " + profile.getUsername() + ".");
+            schedule(proxy, id, MIN_RETRY_DELAY);
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+}
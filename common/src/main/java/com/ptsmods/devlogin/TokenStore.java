@@ -0,0 +1,148 @@
+package com.ptsmods.devlogin;
+
+import com.google.common.reflect.TypeToken;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stores the tokens of every account that has been logged in with in the DevLogin directory in the user's home directory.
+ * This way, all run directories share the same accounts and any number of clients can use and update them at the same time.
+ * Accounts are keyed by the undashed UUID of their Minecraft profile.
+ */
+public class TokenStore {
+    private static final Logger LOG = LogManager.getLogger("DevLogin-TokenStore");
+    private static final SharedJsonFile<Data> file = new SharedJsonFile<>(DevLogin.getDirectory().resolve("accounts.json"), Data.class, Data::new);
+    private static final Path legacyFile = Paths.get("DevLoginCache.json");
+
+    /**
+     * Gets the stored data of an account.
+     * @param account The name or UUID of the account to get or {@code null} to get the account that was used last.
+     * @return A copy of the stored data of the account or {@code null} if it has not been stored.
+     */
+    public static Map<String, String> get(String account) {
+        Data data = file.read();
+        if (account == null) {
+            if (data.lastUsed == null) return readLegacy();
+            account = data.lastUsed;
+        }
+
+        Map<String, String> accountData = data.accounts.get(account);
+        if (accountData == null)
+            for (Map<String, String> candidate : data.accounts.values())
+                if (account.equalsIgnoreCase(candidate.get("profileName")) || account.replace("-", "").equalsIgnoreCase(candidate.get("profileId"))) {
+                    accountData = candidate;
+                    break;
+                }
+
+        return accountData == null ? null : new HashMap<>(accountData);
+    }
+
+    /**
+     * Stores the data of an account and marks it as the one used last.
+     * @param accountData The data to store. Must contain the profileId.
+     */
+    public static void put(Map<String, String> accountData) {
+        String id = Objects.requireNonNull(accountData.get("profileId"), "profileId");
+
+        try {
+            file.update(data -> {
+                data.accounts.put(id, new HashMap<>(accountData));
+                data.lastUsed = id;
+                return data;
+            });
+        } catch (IOException e) {
+            LOG.error("Could not save token data.", e);
+        }
+    }
+
+    /**
+     * Changes some of the stored data of an account without marking it as the one used last.
+     * Does nothing if the account has not been stored.
+     * @param id The undashed UUID of the account
+     * @param changes The data to change
+     */
+    public static void update(String id, Map<String, String> changes) {
+        try {
+            file.update(data -> {
+                Map<String, String> accountData = data.accounts.get(id);
+                if (accountData != null) accountData.putAll(changes);
+                return data;
+            });
+        } catch (IOException e) {
+            LOG.error("Could not save token data.", e);
+        }
+    }
+
+    /**
+     * Removes the refresh token of an account after Microsoft rejected it, so nothing tries to use it again until the account is logged in with again.
+     * When it was rejected is stored as {@code refreshTokenRevoked}, in epoch millis. Does nothing if another refresh token was stored in the meantime.
+     * @param id The undashed UUID of the account
+     * @param refreshToken The refresh token that was rejected
+     */
+    public static void revokeRefreshToken(String id, String refreshToken) {
+        AtomicBoolean revoked = new AtomicBoolean();
+        try {
+            file.update(data -> {
+                Map<String, String> accountData = data.accounts.get(id);
+                if (accountData != null && refreshToken.equals(accountData.get("refreshToken"))) {
+                    accountData.remove("refreshToken");
+                    accountData.put("refreshTokenRevoked", String.valueOf(System.currentTimeMillis()));
+                    revoked.set(true);
+                }
+                return data;
+            });
+        } catch (IOException e) {
+            LOG.error("Could not save token data.", e);
+            return;
+        }
+
+        if (revoked.get()) LOG.warn("The refresh token of account " + id + " was rejected, it has to be logged in with again.");
+    }
+
+    /**
+     * @return A copy of the stored data of all accounts, keyed by their undashed UUID, in the order they were first stored in.
+     */
+    public static Map<String, Map<String, String>> getAll() {
+        Map<String, Map<String, String>> accounts = new LinkedHashMap<>();
+        file.read().accounts.forEach((id, accountData) -> accounts.put(id, new HashMap<>(accountData)));
+        return accounts;
+    }
+
+    /**
+     * @return The UUIDs of all stored accounts.
+     */
+    public static Set<String> getAccounts() {
+        return Collections.unmodifiableSet(file.read().accounts.keySet());
+    }
+
+    /**
+     * Reads the cache file that was stored in the run directory by older versions.
+     * It will automatically be moved to the store the next time the account is stored.
+     * @return The data in the legacy cache file or {@code null} if it does not exist.
+     */
+    private static Map<String, String> readLegacy() {
+        if (!Files.exists(legacyFile)) return null;
+
+        try (InputStream in = Files.newInputStream(legacyFile)) {
+            LOG.info("Using tokens from " + legacyFile.toAbsolutePath() + ".");
+            return Json.read(in, new TypeToken<Map<String, String>>() {}.getType());
+        } catch (IOException | JsonParseException e) {
+            LOG.error("Could not read token data.", e);
+            return null;
+        }
+    }
+
+    private static class Data {
+        private String lastUsed;
+        private Map<String, Map<String, String>> accounts = new LinkedHashMap<>();
+    }
+}
@@ -1,9 +1,13 @@
 package com.ptsmods.devlogin;
 
 import java.util.UUID;
+import java.util.regex.Pattern;
 
 // They changed the name so to maintain compatibility, we have to make our own.
 public class UndashedUuid {
+    private static final Pattern UNDASHED = Pattern.compile("(\\w{8})(\\w{4})(\\w{4})(\\w{4})(\\w{12})");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     public static UUID fromString(final String string) {
         if (string.indexOf('-') != -1) {
             throw new IllegalArgumentException("Invalid undashed UUID string: " + string);
@@ -12,10 +16,50 @@ public class UndashedUuid {
     }
 
     public static UUID fromStringLenient(final String string) {
-        return UUID.fromString(string.replaceFirst("(\\w{8})(\\w{4})(\\w{4})(\\w{4})(\\w{12})", "$1-$2-$3-$4-$5"));
+        // Undashed UUIDs are decoded directly, anything else goes the slow way so that it's handled exactly as it used to be.
+        if (string.length() == 32) {
+            long msb = parseHex(string, 0), lsb = parseHex(string, 16);
+            if (msb != -1 && lsb != -1 || isHex(string)) return new UUID(msb, lsb);
+        }
+        return UUID.fromString(UNDASHED.matcher(string).replaceFirst("$1-$2-$3-$4-$5"));
     }
 
     public static String toString(final UUID uuid) {
-        return uuid.toString().replace("-", "");
+        char[] chars = new char[32];
+        putHex(chars, 0, uuid.getMostSignificantBits());
+        putHex(chars, 16, uuid.getLeastSignificantBits());
+        return new String(chars);
+    }
+
+    /**
+     * @return The 16 hex digits at the given offset as a long or -1 if any of them is not a hex digit.
+     * As -1 is also a valid result, check with {@link #isHex(String)} when getting it.
+     */
+    private static long parseHex(String string, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            int digit = digit(string.charAt(i));
+            if (digit == -1) return -1;
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private static boolean isHex(String string) {
+        for (int i = 0; i < string.length(); i++)
+            if (digit(string.charAt(i)) == -1) return false;
+        return true;
+    }
+
+    private static int digit(char c) {
+        // Only ASCII, unlike Character#digit.
+        return c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+    }
+
+    private static void putHex(char[] chars, int offset, long value) {
+        for (int i = offset + 15; i >= offset; i--) {
+            chars[i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
     }
 }